@@ -0,0 +1,101 @@
+package com.cavetale.midi;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning a MIDI file into a song: decoding the tracks, merging them,
+ * and all of it from disk, both from source and from the compiled
+ * file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompileBenchmark {
+    @Param({"1", "16"})
+    public int tracks;
+    @Param({"1000", "20000"})
+    public int notes;
+    @Param({"1", "4"})
+    public int density;
+    private byte[] bytes;
+    private Collection<Midi> parts;
+    private File dir;
+    private File source;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        bytes = MidiFiles.generate(1L, tracks, notes, density);
+        parts = Midi.parse(ByteBuffer.wrap(bytes));
+        dir = Files.createTempDirectory("midi-benchmark").toFile();
+        source = new File(dir, "song.mid");
+        Files.write(source.toPath(), bytes);
+        MidiBinary.load(source, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file: files) file.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public Collection<Midi> parse() throws Exception {
+        return Midi.parse(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Decode with javax.sound.midi, as the plugin used to, for
+     * comparison with parse.
+     */
+    @Benchmark
+    public Sequence parseJavax() throws Exception {
+        return MidiSystem.getSequence(new ByteArrayInputStream(bytes));
+    }
+
+    @Benchmark
+    public Midi combine() {
+        return Midi.combine(parts);
+    }
+
+    /**
+     * Map, decode, merge, schedule and coalesce.
+     */
+    @Benchmark
+    public Midi load() {
+        return Midi.load(source, 0);
+    }
+
+    /**
+     * Map and check the compiled file written in setup.
+     */
+    @Benchmark
+    public Midi loadCompiled() {
+        return MidiBinary.read(source, MidiBinary.binaryFileOf(source), 0);
+    }
+}
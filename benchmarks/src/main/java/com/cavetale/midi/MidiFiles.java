@@ -0,0 +1,47 @@
+package com.cavetale.midi;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Synthetic Standard MIDI Files, so the benchmarks need no fixtures.
+ */
+final class MidiFiles {
+    private MidiFiles() { }
+
+    /**
+     * Make a type 1 file.  Each track plays its notes in chords of
+     * the given density, one chord per eighth note, with a program
+     * change now and then.
+     * @param notes the notes per track
+     * @param density the notes per chord
+     */
+    static byte[] generate(long seed, int tracks, int notes, int density) throws Exception {
+        Random random = new Random(seed);
+        Sequence sequence = new Sequence(Sequence.PPQ, 96);
+        for (int t = 0; t < tracks; t += 1) {
+            Track track = sequence.createTrack();
+            int channel = t % 16;
+            long tick = 0L;
+            for (int i = 0; i < notes; i += 1) {
+                if (i % density == 0) {
+                    tick += 48L;
+                    if (random.nextInt(64) == 0) {
+                        track.add(new MidiEvent(new ShortMessage(ShortMessage.PROGRAM_CHANGE, channel, random.nextInt(128), 0), tick));
+                    }
+                }
+                int key = 36 + random.nextInt(60);
+                track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, channel, key, 1 + random.nextInt(127)), tick));
+                track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, channel, key, 0), tick + 40L));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MidiSystem.write(sequence, 1, out);
+        return out.toByteArray();
+    }
+}
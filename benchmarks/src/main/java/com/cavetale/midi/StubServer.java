@@ -0,0 +1,101 @@
+package com.cavetale.midi;
+
+import java.util.logging.Logger;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.implementation.ExceptionMethod;
+import net.bytebuddy.matcher.ElementMatchers;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.Sound;
+import org.bukkit.SoundCategory;
+import org.bukkit.World;
+
+/**
+ * A server with one world, "world", which has every chunk loaded and
+ * counts the sounds played in it.  Only the methods the plugin calls
+ * are written out, as plain methods which allocate nothing.  The
+ * others are filled in by concrete(), and throw.
+ */
+public abstract class StubServer implements Server {
+    static final StubWorld WORLD = concrete(StubWorld.class);
+
+    protected StubServer() { }
+
+    /**
+     * Install the stub as the Bukkit server, once per JVM.
+     */
+    static void install() {
+        if (Bukkit.getServer() != null) return;
+        Bukkit.setServer(concrete(StubServer.class));
+    }
+
+    /**
+     * Subclass a stub, implementing every abstract method to throw
+     * UnsupportedOperationException.
+     */
+    static <T> T concrete(Class<T> type) {
+        try {
+            return new ByteBuddy()
+                .subclass(type)
+                .method(ElementMatchers.isAbstract())
+                .intercept(ExceptionMethod.throwing(UnsupportedOperationException.class))
+                .make()
+                .load(type.getClassLoader())
+                .getLoaded()
+                .getDeclaredConstructor()
+                .newInstance();
+        } catch (ReflectiveOperationException roe) {
+            throw new IllegalStateException(roe);
+        }
+    }
+
+    @Override
+    public World getWorld(String name) {
+        return "world".equals(name) ? WORLD : null;
+    }
+
+    @Override
+    public Logger getLogger() {
+        return Logger.getLogger("StubServer");
+    }
+
+    @Override
+    public String getName() {
+        return "stub";
+    }
+
+    @Override
+    public String getVersion() {
+        return "stub";
+    }
+
+    @Override
+    public String getBukkitVersion() {
+        return "stub";
+    }
+
+    /**
+     * The one world.
+     */
+    public abstract static class StubWorld implements World {
+        long sounds;
+
+        protected StubWorld() { }
+
+        @Override
+        public String getName() {
+            return "world";
+        }
+
+        @Override
+        public boolean isChunkLoaded(int x, int z) {
+            return true;
+        }
+
+        @Override
+        public void playSound(Location location, Sound sound, SoundCategory category, float volume, float pitch) {
+            sounds += 1L;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.cavetale.midi;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.bukkit.Location;
+import org.bukkit.Sound;
+import org.bukkit.SoundCategory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One server tick of many players, all looping the same song at
+ * different positions, against a world which counts sounds.  Run with
+ * -prof gc for allocation rates.  The stub world allocates nothing,
+ * see baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TickBenchmark {
+    @Param({"1", "100", "1000"})
+    public int players;
+    private MidiPlayer[] mplayers;
+    private MidiListeners listeners;
+    private Location location;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        StubServer.install();
+        Midi midi = Midi.compile(ByteBuffer.wrap(MidiFiles.generate(1L, 16, 20000, 4)), 16);
+        mplayers = new MidiPlayer[players];
+        for (int i = 0; i < players; i += 1) {
+            MidiPlayer mplayer = new MidiPlayer();
+            mplayer.world = "world";
+            mplayer.x = (double) (i * 16);
+            mplayer.loop = true;
+            mplayer.midi = midi;
+            mplayer.updateChunk();
+            mplayer.setup();
+            mplayer.seek((double) (i * 97 % midi.getDuration()));
+            mplayers[i] = mplayer;
+        }
+        listeners = new MidiListeners(0.0);
+        location = new Location(StubServer.WORLD, 0.0, 0.0, 0.0);
+    }
+
+    /**
+     * @return the sounds played so far, to keep them alive
+     */
+    @Benchmark
+    public long tick() {
+        listeners.update(Collections.emptyList());
+        for (MidiPlayer mplayer: mplayers) mplayer.tick(listeners);
+        return StubServer.WORLD.sounds;
+    }
+
+    /**
+     * The cost of one sound sent to the stub world.
+     */
+    @Benchmark
+    public long baseline() {
+        StubServer.WORLD.playSound(location, Sound.BLOCK_NOTE_BLOCK_HARP, SoundCategory.MASTER, 1.0f, 1.0f);
+        return StubServer.WORLD.sounds;
+    }
+}
@@ -1,31 +1,177 @@
 package com.cavetale.midi;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.List;
-import javax.sound.midi.MidiEvent;
-import javax.sound.midi.MidiMessage;
-import javax.sound.midi.MidiSystem;
-import javax.sound.midi.Sequence;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import javax.sound.midi.ShortMessage;
-import javax.sound.midi.Track;
 import lombok.Value;
 import org.bukkit.Sound;
 
+/**
+ * A compiled song.  Instances are immutable and may be shared by any
+ * number of players.
+ *
+ * Blips are stored as parallel arrays, sorted by tick: the tick, an
+ * index into the small palette of sounds the song uses, the pitch,
+ * and the velocity.  None of the arrays may be modified.  The ticks
+ * of a compiled song are server ticks at the original tempo; the
+ * ticks of songs fresh out of parse are MIDI ticks.  A compiled song
+ * also knows how many blips were dropped by coalesce.
+ */
 @Value
 public final class Midi {
     public static final String[] NOTE_NAMES = {"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
-    private final List<Blip> blips = new ArrayList<>();
+    private final Sound[] palette;
+    private final long[] ticks;
+    private final byte[] sounds;
+    private final float[] pitches;
+    private final byte[] velocities;
+    private final int droppedDuplicates;
+    private final int droppedVoices;
 
-    @Value
-    static class Blip {
-        public final long tick;
-        public final Sound sound;
-        public final float pitch;
+    public int size() {
+        return ticks.length;
+    }
+
+    public Sound getSound(int index) {
+        return palette[sounds[index] & 0xFF];
+    }
+
+    /**
+     * Estimate the heap taken by the arrays of this song.
+     */
+    public long getByteSize() {
+        return 5L * 16L + 14L * ticks.length + 4L * palette.length;
+    }
+
+    /**
+     * Get the tick of the last blip.
+     */
+    public long getDuration() {
+        return ticks.length == 0 ? 0L : ticks[ticks.length - 1];
+    }
+
+    /**
+     * Find the first blip at or after a position, by binary search.
+     */
+    public int indexOf(double position) {
+        int lo = 0;
+        int hi = ticks.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ticks[mid] < position) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Turn MIDI ticks into server ticks.
+     */
+    Midi schedule(MidiTempo tempo) {
+        long[] result = new long[ticks.length];
+        for (int i = 0; i < ticks.length; i += 1) {
+            result[i] = tempo.serverTickOf(ticks[i]);
+        }
+        return new Midi(palette, result, sounds, pitches, velocities, droppedDuplicates, droppedVoices);
+    }
+
+    /**
+     * Thin out the blips of each tick, see MidiVoices.
+     * @param maxVoices the most blips per tick, or 0 for no limit
+     */
+    Midi coalesce(int maxVoices) {
+        MidiVoices voices = new MidiVoices(maxVoices);
+        Builder builder = new Builder(ticks.length);
+        int i = 0;
+        while (i < ticks.length) {
+            long tick = ticks[i];
+            voices.clear();
+            do {
+                voices.offer(getSound(i), pitches[i], velocities[i]);
+                i += 1;
+            } while (i < ticks.length && ticks[i] == tick);
+            for (int j = 0; j < voices.size(); j += 1) {
+                builder.add(tick, voices.sounds[j], voices.pitches[j], voices.velocities[j]);
+            }
+        }
+        return builder.build(droppedDuplicates + voices.getDuplicates(), droppedVoices + voices.getExcess());
+    }
+
+    /**
+     * Collect blips in order of insertion.
+     */
+    static final class Builder {
+        private Sound[] palette = new Sound[8];
+        private int paletteSize;
+        private long[] ticks;
+        private byte[] sounds;
+        private float[] pitches;
+        private byte[] velocities;
+        private int size;
+
+        Builder() {
+            this(64);
+        }
+
+        Builder(final int capacity) {
+            this.ticks = new long[capacity];
+            this.sounds = new byte[capacity];
+            this.pitches = new float[capacity];
+            this.velocities = new byte[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void add(long tick, Sound sound, float pitch, int velocity) {
+            if (size == ticks.length) {
+                int capacity = Math.max(16, size + (size >> 1));
+                ticks = Arrays.copyOf(ticks, capacity);
+                sounds = Arrays.copyOf(sounds, capacity);
+                pitches = Arrays.copyOf(pitches, capacity);
+                velocities = Arrays.copyOf(velocities, capacity);
+            }
+            ticks[size] = tick;
+            sounds[size] = (byte) paletteIndexOf(sound);
+            pitches[size] = pitch;
+            velocities[size] = (byte) velocity;
+            size += 1;
+        }
+
+        private int paletteIndexOf(Sound sound) {
+            for (int i = 0; i < paletteSize; i += 1) {
+                if (palette[i] == sound) return i;
+            }
+            if (paletteSize == 256) throw new IllegalStateException("Too many sounds");
+            if (paletteSize == palette.length) palette = Arrays.copyOf(palette, paletteSize * 2);
+            palette[paletteSize] = sound;
+            return paletteSize++;
+        }
+
+        Midi build() {
+            return build(0, 0);
+        }
+
+        Midi build(int droppedDuplicates, int droppedVoices) {
+            return new Midi(Arrays.copyOf(palette, paletteSize),
+                            Arrays.copyOf(ticks, size),
+                            Arrays.copyOf(sounds, size),
+                            Arrays.copyOf(pitches, size),
+                            Arrays.copyOf(velocities, size),
+                            droppedDuplicates, droppedVoices);
+        }
     }
 
     static Sound pianoSoundOf(int octave) {
@@ -133,64 +279,199 @@ public final class Midi {
         }
     }
 
+    /**
+     * Merge songs, each of which is already sorted by tick, into
+     * one.  Blips on the same tick keep the order of the given songs.
+     *
+     * This is a k-way merge: the next blip of each song sits in a
+     * binary heap, keyed by its tick and then the index of the song,
+     * both packed into one long.  There may be at most 65536 songs.
+     */
     static Midi combine(Collection<Midi> midis) {
-        Midi result = new Midi();
-        for (Midi midi: midis) result.blips.addAll(midi.blips);
-        Collections.sort(result.blips, (a, b) -> Long.compare(a.tick, b.tick));
-        return result;
-    }
-
-    static Collection<Midi> parse(InputStream in) throws Exception {
-        List<Midi> result = new ArrayList<>();
-        Sequence sequence = MidiSystem.getSequence(in);
-        int trackNumber = 0;
-        int currentSound = 0;
-        for (Track track: sequence.getTracks()) {
-            trackNumber++;
-            Midi midi = new Midi();
-            result.add(midi);
-            for (int i = 0; i < track.size(); i++) {
-                MidiEvent event = track.get(i);
-                MidiMessage message = event.getMessage();
-                if (message instanceof ShortMessage) {
-                    ShortMessage sm = (ShortMessage) message;
-                    if (sm.getCommand() == ShortMessage.NOTE_ON) {
-                        int key = sm.getData1();
-                        int octave = (key / 12) - 1;
-                        int noteIndex = key % 12;
-                        String noteName = NOTE_NAMES[noteIndex];
-                        Note note = null;
-                        for (Note n: Note.values()) {
-                            if (n.name.equals(noteName) && n.octave == (octave % 2) + 1) {
-                                note = n;
-                                break;
-                            }
-                        }
-                        if (note == null) continue;
-                        int velocity = sm.getData2();
-                        Sound sound = soundOf(currentSound, octave);
-                        if (note != null) midi.blips.add(new Blip(event.getTick(), sound, note.pitch));
-                    } else if (sm.getCommand() == ShortMessage.NOTE_OFF) {
-                        int key = sm.getData1();
-                        int octave = (key / 12) - 1;
-                        int note = key % 12;
-                        String noteName = NOTE_NAMES[note];
-                        int velocity = sm.getData2();
-                    } else if ((sm.getCommand() >> 4) == 12) { // PROGRAM_CHANGE
-                        int channel = sm.getCommand() & 0xF;
-                        int instrument = sm.getData1();
-                        int some = sm.getData2();
-                        currentSound = instrument;
-                    }
+        Midi[] parts = midis.toArray(new Midi[0]);
+        int[] cursors = new int[parts.length];
+        long[] heap = new long[parts.length];
+        int heapSize = 0;
+        int total = 0;
+        for (int i = 0; i < parts.length; i += 1) {
+            total += parts[i].size();
+            if (parts[i].size() == 0) continue;
+            heap[heapSize] = (parts[i].ticks[0] << 16) | i;
+            siftUp(heap, heapSize++);
+        }
+        Builder builder = new Builder(total);
+        while (heapSize > 0) {
+            int next = (int) (heap[0] & 0xFFFF);
+            Midi part = parts[next];
+            int index = cursors[next]++;
+            builder.add(part.ticks[index], part.getSound(index), part.pitches[index], part.velocities[index]);
+            if (index + 1 < part.size()) {
+                heap[0] = (part.ticks[index + 1] << 16) | next;
+            } else {
+                heapSize -= 1;
+                heap[0] = heap[heapSize];
+            }
+            siftDown(heap, heapSize, 0);
+        }
+        return builder.build();
+    }
+
+    private static void siftUp(long[] heap, int i) {
+        long key = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= key) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = key;
+    }
+
+    private static void siftDown(long[] heap, int size, int i) {
+        if (size == 0) return;
+        long key = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) break;
+            if (child + 1 < size && heap[child + 1] < heap[child]) child += 1;
+            if (key <= heap[child]) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = key;
+    }
+
+    /**
+     * Pitch of each MIDI key, or 0 if the key cannot be played.
+     */
+    static final float[] KEY_PITCHES = new float[128];
+    /**
+     * Sound of each MIDI key, indexed by program.
+     */
+    static final Sound[][] PROGRAM_SOUNDS = new Sound[128][];
+
+    static {
+        for (int key = 0; key < 128; key += 1) {
+            int octave = (key / 12) - 1;
+            String noteName = NOTE_NAMES[key % 12];
+            for (Note n: Note.values()) {
+                if (n.name.equals(noteName) && n.octave == (octave % 2) + 1) {
+                    KEY_PITCHES[key] = n.pitch;
+                    break;
                 }
             }
         }
-        return result;
+        // Programs of the same family share one table.
+        Sound[][] families = new Sound[16][];
+        for (int program = 0; program < 128; program += 1) {
+            int family = (program - 1) / 8;
+            if (families[family] == null) {
+                Sound[] table = new Sound[128];
+                for (int key = 0; key < 128; key += 1) {
+                    table[key] = soundOf(program, (key / 12) - 1);
+                }
+                families[family] = table;
+            }
+            PROGRAM_SOUNDS[program] = families[family];
+        }
+    }
+
+    /**
+     * Files with at least this many bytes and more than one track
+     * have their tracks parsed in parallel.
+     */
+    static final int PARALLEL_BYTES = 32 * 1024;
+
+    /**
+     * Compile each track of a Standard MIDI File.  Tracks do not
+     * share any state, so those of larger files are compiled in
+     * parallel, on the common fork join pool.
+     */
+    static Collection<Midi> parse(ByteBuffer buffer) throws IOException {
+        return parse(new MidiDecoder(buffer));
+    }
+
+    static Collection<Midi> parse(MidiDecoder decoder) throws IOException {
+        Midi[] result = new Midi[decoder.getTrackCount()];
+        if (result.length > 1 && decoder.getBuffer().limit() >= PARALLEL_BYTES) {
+            try {
+                ForkJoinPool.commonPool().invoke(new ParseTask(decoder, result, 0, result.length));
+            } catch (UncheckedIOException uioe) {
+                throw uioe.getCause();
+            }
+        } else {
+            for (int track = 0; track < result.length; track += 1) {
+                result[track] = parseTrack(decoder, track);
+            }
+        }
+        return Arrays.asList(result);
+    }
+
+    static Midi parseTrack(MidiDecoder decoder, int track) throws IOException {
+        MidiDecoder.Cursor cursor = decoder.cursor(track);
+        Builder builder = new Builder();
+        while (cursor.nextNote()) {
+            float pitch = KEY_PITCHES[cursor.key];
+            if (pitch == 0f) continue;
+            builder.add(cursor.tick, PROGRAM_SOUNDS[cursor.program][cursor.key], pitch, cursor.velocity);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Parse a range of tracks, splitting it in halves down to single
+     * tracks.
+     */
+    @SuppressWarnings("serial")
+    static final class ParseTask extends RecursiveAction {
+        private final MidiDecoder decoder;
+        private final Midi[] result;
+        private final int from;
+        private final int to;
+
+        ParseTask(final MidiDecoder decoder, final Midi[] result, final int from, final int to) {
+            this.decoder = decoder;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                try {
+                    result[from] = parseTrack(decoder, from);
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ParseTask(decoder, result, from, mid), new ParseTask(decoder, result, mid, to));
+        }
+    }
+
+    /**
+     * Compile a Standard MIDI File into a song which is scheduled in
+     * server ticks, without a voice limit.
+     */
+    static Midi compile(ByteBuffer buffer) throws IOException {
+        return compile(buffer, 0);
+    }
+
+    /**
+     * Compile a Standard MIDI File into a song which is scheduled in
+     * server ticks and coalesced.
+     * @param maxVoices the most blips per tick, or 0 for no limit
+     */
+    static Midi compile(ByteBuffer buffer, int maxVoices) throws IOException {
+        MidiDecoder decoder = new MidiDecoder(buffer);
+        return combine(parse(decoder)).schedule(MidiTempo.of(decoder)).coalesce(maxVoices);
     }
 
-    static Midi load(File file) {
-        try {
-            return combine(parse(new FileInputStream(file)));
+    static Midi load(File file, int maxVoices) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return compile(channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size()), maxVoices);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -0,0 +1,222 @@
+package com.cavetale.midi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import org.bukkit.Sound;
+
+/**
+ * Compiled songs on disk.  The compiled form of a MIDI file is kept
+ * next to it, with the suffix ".midc", and is memory mapped on later
+ * loads instead of compiling the source again.  Ticks are stored as
+ * server ticks, so the tempo map is part of them.  All numbers are
+ * big endian.
+ *
+ * Header: magic, version, source size, source modification time,
+ * source CRC32, payload CRC32, palette size, blip count, voice limit,
+ * dropped duplicates, dropped voices, and 4 reserved bytes.  Payload:
+ * ticks (8 bytes each), pitches (4 bytes each), sound indexes (1 byte
+ * each), velocities (1 byte each), then the name of each palette
+ * sound, prefixed with its length (2 bytes).
+ *
+ * A file which does not match its source or voice limit, or fails
+ * any check, is rebuilt.
+ */
+final class MidiBinary {
+    static final int MAGIC = 0x4D494443; // MIDC
+    static final int VERSION = 4;
+    static final int HEADER_SIZE = 56;
+    static final String SUFFIX = "c";
+
+    private MidiBinary() { }
+
+    static File binaryFileOf(File source) {
+        return new File(source.getParentFile(), source.getName() + SUFFIX);
+    }
+
+    /**
+     * Load a song, from its compiled file if it is up to date, or
+     * else from source, in which case the compiled file is written.
+     * @return the song, or null if it could not be loaded
+     */
+    static Midi load(File source, int maxVoices) {
+        return load(source, maxVoices, null);
+    }
+
+    /**
+     * @param stats where to record the compile time, or null
+     */
+    static Midi load(File source, int maxVoices, MidiStats stats) {
+        File binary = binaryFileOf(source);
+        if (binary.isFile()) {
+            Midi midi = read(source, binary, maxVoices);
+            if (midi != null) return midi;
+        }
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            long lastModified = source.lastModified();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+            long time = System.nanoTime();
+            Midi midi = Midi.compile(buffer.duplicate(), maxVoices);
+            if (stats != null) stats.compileNanos.record(System.nanoTime() - time);
+            try {
+                write(binary, midi, channel.size(), lastModified, crcOf(buffer), maxVoices);
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+            return midi;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    static int crcOf(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Read a compiled file.
+     * @return the song, or null if the file is stale or broken
+     */
+    static Midi read(File source, File binary, int maxVoices) {
+        try (FileChannel channel = FileChannel.open(binary.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) return null;
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, fileSize);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) return null;
+            long sourceSize = buffer.getLong(8);
+            long sourceModified = buffer.getLong(16);
+            int sourceCrc = buffer.getInt(24);
+            int payloadCrc = buffer.getInt(28);
+            int paletteSize = buffer.getInt(32);
+            int size = buffer.getInt(36);
+            if (buffer.getInt(40) != maxVoices) return null;
+            int droppedDuplicates = buffer.getInt(44);
+            int droppedVoices = buffer.getInt(48);
+            if (sourceSize != source.length()) return null;
+            final long lastModified = source.lastModified();
+            final boolean touched = sourceModified != lastModified;
+            if (touched) {
+                // Touched but maybe not changed.
+                try (FileChannel sourceChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                    if (sourceCrc != crcOf(sourceChannel.map(FileChannel.MapMode.READ_ONLY, 0L, sourceChannel.size()))) return null;
+                }
+            }
+            if (paletteSize < 0 || paletteSize > 256 || size < 0) return null;
+            long arrays = HEADER_SIZE + 14L * size;
+            if (arrays > fileSize) return null;
+            position(buffer, HEADER_SIZE);
+            if (payloadCrc != crcOf(buffer)) return null;
+            long[] ticks = new long[size];
+            float[] pitches = new float[size];
+            byte[] sounds = new byte[size];
+            byte[] velocities = new byte[size];
+            position(buffer, HEADER_SIZE);
+            buffer.asLongBuffer().get(ticks);
+            position(buffer, HEADER_SIZE + 8 * size);
+            buffer.asFloatBuffer().get(pitches);
+            position(buffer, HEADER_SIZE + 12 * size);
+            buffer.get(sounds);
+            buffer.get(velocities);
+            Sound[] palette = new Sound[paletteSize];
+            for (int i = 0; i < paletteSize; i += 1) {
+                if (buffer.remaining() < 2) return null;
+                int length = buffer.getShort() & 0xFFFF;
+                if (buffer.remaining() < length) return null;
+                byte[] name = new byte[length];
+                buffer.get(name);
+                palette[i] = Sound.valueOf(new String(name, StandardCharsets.UTF_8));
+            }
+            for (byte sound: sounds) {
+                if ((sound & 0xFF) >= paletteSize) return null;
+            }
+            if (touched) touch(binary, lastModified);
+            return new Midi(palette, ticks, sounds, pitches, velocities, droppedDuplicates, droppedVoices);
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Store a new modification time of the source in the header of a
+     * compiled file, so the source is not hashed again on every load.
+     */
+    static void touch(File binary, long sourceModified) {
+        try (FileChannel channel = FileChannel.open(binary.toPath(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(8).putLong(0, sourceModified), 16L);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * Set the position of a buffer.  The call goes through Buffer,
+     * whose position method is the only one on Java 8, so that a
+     * build on a newer JDK does not link to the covariant overrides
+     * of ByteBuffer.
+     */
+    static void position(ByteBuffer buffer, int position) {
+        ((Buffer) buffer).position(position);
+    }
+
+    /**
+     * Write a compiled file.  It is written under a unique temporary
+     * name first, then moved into place, so several threads may write
+     * the same song at once.
+     */
+    static void write(File binary, Midi midi, long sourceSize, long sourceModified, int sourceCrc, int maxVoices) throws IOException {
+        int size = midi.size();
+        Sound[] palette = midi.getPalette();
+        byte[][] names = new byte[palette.length][];
+        int namesLength = 0;
+        for (int i = 0; i < palette.length; i += 1) {
+            names[i] = palette[i].name().getBytes(StandardCharsets.UTF_8);
+            namesLength += 2 + names[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 14 * size + namesLength);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(sourceSize);
+        buffer.putLong(sourceModified);
+        buffer.putInt(sourceCrc);
+        buffer.putInt(0); // payload CRC32, see below
+        buffer.putInt(palette.length);
+        buffer.putInt(size);
+        buffer.putInt(maxVoices);
+        buffer.putInt(midi.getDroppedDuplicates());
+        buffer.putInt(midi.getDroppedVoices());
+        buffer.putInt(0); // reserved
+        buffer.asLongBuffer().put(midi.getTicks());
+        position(buffer, HEADER_SIZE + 8 * size);
+        buffer.asFloatBuffer().put(midi.getPitches());
+        position(buffer, HEADER_SIZE + 12 * size);
+        buffer.put(midi.getSounds());
+        buffer.put(midi.getVelocities());
+        for (byte[] name: names) {
+            buffer.putShort((short) name.length);
+            buffer.put(name);
+        }
+        position(buffer, HEADER_SIZE);
+        buffer.putInt(28, crcOf(buffer));
+        position(buffer, 0);
+        Path tmp = Files.createTempFile(binary.getParentFile().toPath(), binary.getName(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+            Files.move(tmp, binary.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.cavetale.midi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import lombok.Value;
+
+/**
+ * Compiled songs, shared by all players which play the same file.
+ * A song is identified by its canonical path, modification time and
+ * size, so an edited file is compiled anew.  Concurrent requests for
+ * the same file wait for the one load in flight.  Each call to
+ * acquire must be matched by a call to release; once no player holds
+ * a song any longer, it is evicted.  Each song loaded is logged with
+ * the blips it lost to coalescing.
+ */
+final class MidiCache {
+    private final int maxVoices;
+    private final Logger logger;
+    private final MidiStats stats;
+    private final Map<Key, Entry> entries = new HashMap<>();
+    private final Map<Midi, Entry> loaded = new IdentityHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @Value
+    static class Key {
+        public final String path;
+        public final long lastModified;
+        public final long size;
+    }
+
+    /**
+     * @param maxVoices the voice limit of all songs, see MidiVoices
+     * @param stats where to record load times and memory
+     */
+    MidiCache(final int maxVoices, final Logger logger, final MidiStats stats) {
+        this.maxVoices = maxVoices;
+        this.logger = logger;
+        this.stats = stats;
+    }
+
+    static final class Entry {
+        final Key key;
+        final CompletableFuture<Midi> future = new CompletableFuture<>();
+        int references;
+
+        Entry(final Key key) {
+            this.key = key;
+        }
+    }
+
+    static Key keyOf(File file) throws IOException {
+        File canonical = file.getCanonicalFile();
+        return new Key(canonical.getPath(), canonical.lastModified(), canonical.length());
+    }
+
+    /**
+     * Get the compiled song of a file, loading it if necessary.  This
+     * may block and must not be called from the main thread.
+     * @return the song, or null if it could not be loaded
+     */
+    Midi acquire(File file) {
+        final Key key;
+        try {
+            key = keyOf(file);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return null;
+        }
+        final Entry entry;
+        final boolean owner;
+        synchronized (this) {
+            Entry old = entries.get(key);
+            if (old != null) {
+                entry = old;
+                owner = false;
+                hits.incrementAndGet();
+            } else {
+                entry = new Entry(key);
+                entries.put(key, entry);
+                owner = true;
+                misses.incrementAndGet();
+            }
+            entry.references += 1;
+        }
+        if (owner) {
+            long time = System.nanoTime();
+            Midi midi = MidiBinary.load(file, maxVoices, stats);
+            if (midi != null) {
+                stats.loadNanos.record(System.nanoTime() - time);
+                stats.cachedSongs.incrementAndGet();
+                stats.cachedSongBytes.addAndGet(midi.getByteSize());
+                logger.info("Loaded " + file.getName() + ": " + midi.size() + " blips, dropped "
+                            + midi.getDroppedDuplicates() + " duplicates, "
+                            + midi.getDroppedVoices() + " over " + maxVoices + " voices");
+                synchronized (this) {
+                    loaded.put(midi, entry);
+                }
+            }
+            entry.future.complete(midi);
+        }
+        Midi midi = entry.future.join();
+        if (midi == null) {
+            synchronized (this) {
+                entry.references -= 1;
+                if (entries.get(key) == entry) entries.remove(key);
+            }
+        }
+        return midi;
+    }
+
+    /**
+     * Give back a song obtained via acquire.
+     */
+    synchronized void release(Midi midi) {
+        Entry entry = loaded.get(midi);
+        if (entry == null) return;
+        entry.references -= 1;
+        if (entry.references > 0) return;
+        loaded.remove(midi);
+        if (entries.get(entry.key) == entry) entries.remove(entry.key);
+        evictions.incrementAndGet();
+        stats.cachedSongs.decrementAndGet();
+        stats.cachedSongBytes.addAndGet(-midi.getByteSize());
+    }
+
+    synchronized int size() {
+        return loaded.size();
+    }
+
+    int getMaxVoices() {
+        return maxVoices;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+}
@@ -0,0 +1,193 @@
+package com.cavetale.midi;
+
+import com.google.gson.Gson;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The playback position of every player file and group, kept across
+ * restarts and reloads.  Once per interval, the main thread notes
+ * what changed and hands one copy of all positions to a background
+ * task, which writes them to a single file, unless it would not
+ * change.  The file is read along with the player files, also in the
+ * background, so there is no file access on the main thread.  When
+ * the plugin is disabled, the main thread waits for one last write.
+ *
+ * A position only applies to the song it was taken from.  Finished
+ * players are forgotten, so they start over the next time.
+ */
+final class MidiCheckpoints {
+    static final String FILENAME = "players.state";
+    private final MidiPlugin plugin;
+    private final File file;
+    private State state = new State();
+    private boolean dirty;
+    private final AtomicBoolean writing = new AtomicBoolean();
+    // Numbers the snapshots, so an older one never replaces a newer.
+    private long serial;
+    // Guarded by this.
+    private long writtenSerial;
+    private String writtenJson;
+
+    static final class Entry {
+        double position;
+        int loops;
+        MidiCache.Key song;
+
+        Entry(final double position, final int loops, final MidiCache.Key song) {
+            this.position = position;
+            this.loops = loops;
+            this.song = song;
+        }
+    }
+
+    /**
+     * The file contents.  Entries are never changed, only replaced,
+     * so a shallow copy is a snapshot.
+     */
+    static final class State {
+        Map<String, Entry> players = new HashMap<>();
+        Map<String, Entry> groups = new HashMap<>();
+    }
+
+    MidiCheckpoints(final MidiPlugin plugin) {
+        this.plugin = plugin;
+        this.file = new File(plugin.getDataFolder(), FILENAME);
+    }
+
+    /**
+     * Read the file.  May be called from any thread.
+     * @return the state, or an empty one
+     */
+    State read() {
+        if (!file.isFile()) return new State();
+        try (FileReader reader = new FileReader(file)) {
+            State result = new Gson().fromJson(reader, State.class);
+            if (result == null) return new State();
+            if (result.players == null) result.players = new HashMap<>();
+            if (result.groups == null) result.groups = new HashMap<>();
+            return result;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return new State();
+        }
+    }
+
+    /**
+     * Remember the position a new player resumes from, so it is kept
+     * even before the player gets to play.
+     */
+    void seed(MidiPlayer mplayer) {
+        if (mplayer.checkpoint == null) return;
+        if (mplayer.group != null) {
+            if (!state.groups.containsKey(mplayer.group)) state.groups.put(mplayer.group, mplayer.checkpoint);
+        } else {
+            state.players.put(mplayer.name, mplayer.checkpoint);
+        }
+    }
+
+    void forgetPlayer(String name) {
+        if (state.players.remove(name) != null) dirty = true;
+    }
+
+    void forgetGroup(String name) {
+        if (state.groups.remove(name) != null) dirty = true;
+    }
+
+    /**
+     * Note the position of all players which changed, then write
+     * them, unless the last write is still going.
+     */
+    void checkpoint() {
+        noteAll();
+        if (!dirty || !writing.compareAndSet(false, true)) return;
+        final long number = ++serial;
+        final State snapshot = snapshot();
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+                try {
+                    write(snapshot, number);
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                } finally {
+                    writing.set(false);
+                }
+            });
+    }
+
+    /**
+     * Note the position of all players and write them on a thread of
+     * their own, which is waited for a few seconds.  The scheduler
+     * runs no more tasks for a disabled plugin.  Call this once when
+     * the plugin is disabled.
+     * @return false if the write did not finish in time
+     */
+    boolean save() {
+        noteAll();
+        if (!dirty) return true;
+        final long number = ++serial;
+        final State snapshot = snapshot();
+        Thread thread = new Thread(() -> {
+                try {
+                    write(snapshot, number);
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }, "Midi-Checkpoint");
+        thread.start();
+        try {
+            thread.join(5000L);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+
+    private void noteAll() {
+        for (MidiPlayer mplayer: plugin.players.getAll()) {
+            if (!mplayer.persistent || mplayer.stopped || !mplayer.isReady() || mplayer.songKey == null) continue;
+            if (mplayer.midiGroup != null) {
+                MidiGroup group = mplayer.midiGroup;
+                if (group.cursor.midi != null) note(state.groups, group.name, group.cursor, group.songKey != null ? group.songKey : mplayer.songKey);
+            } else {
+                note(state.players, mplayer.name, mplayer, mplayer.songKey);
+            }
+        }
+    }
+
+    private State snapshot() {
+        dirty = false;
+        State snapshot = new State();
+        snapshot.players.putAll(state.players);
+        snapshot.groups.putAll(state.groups);
+        return snapshot;
+    }
+
+    private void note(Map<String, Entry> entries, String name, MidiPlayer cursor, MidiCache.Key song) {
+        Entry old = entries.get(name);
+        if (old != null && old.position == cursor.tick && old.loops == cursor.loops && song.equals(old.song)) return;
+        entries.put(name, new Entry(cursor.tick, cursor.loops, song));
+        dirty = true;
+    }
+
+    /**
+     * Write a snapshot, unless a newer one was written already, or
+     * the last one looked the same.
+     */
+    private synchronized void write(State snapshot, long number) throws IOException {
+        if (number <= writtenSerial) return;
+        writtenSerial = number;
+        String json = new Gson().toJson(snapshot);
+        if (json.equals(writtenJson)) return;
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Files.write(tmp.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writtenJson = json;
+    }
+}
@@ -0,0 +1,199 @@
+package com.cavetale.midi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import lombok.Getter;
+
+/**
+ * Reader of Standard MIDI Files.  It works directly on a byte buffer,
+ * heap or memory mapped, and only reads what the song compiler
+ * needs.  Track data is read with absolute indexes, so any number of
+ * cursors may walk the same buffer side by side.
+ */
+@Getter
+final class MidiDecoder {
+    static final int MTHD = 0x4D546864;
+    static final int MTRK = 0x4D54726B;
+    private final ByteBuffer buffer;
+    private final int format;
+    private final int division;
+    private int trackCount;
+    private int[] trackStarts;
+    private int[] trackEnds;
+
+    MidiDecoder(final ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        int limit = buffer.limit();
+        if (limit < 14 || buffer.getInt(0) != MTHD) throw new IOException("Not a MIDI file");
+        int headerLength = buffer.getInt(4);
+        if (headerLength < 6) throw new IOException("Invalid header length: " + headerLength);
+        this.format = buffer.getShort(8) & 0xFFFF;
+        if (format != 0 && format != 1) throw new IOException("Unsupported file type: " + format);
+        int declared = buffer.getShort(10) & 0xFFFF;
+        this.division = buffer.getShort(12) & 0xFFFF;
+        this.trackStarts = new int[declared];
+        this.trackEnds = new int[declared];
+        long pos = 8L + headerLength;
+        // Chunks other than tracks are skipped.  A track which is
+        // cut short ends the file.
+        while (trackCount < declared && pos + 8 <= limit) {
+            int magic = buffer.getInt((int) pos);
+            long length = buffer.getInt((int) pos + 4) & 0xFFFFFFFFL;
+            pos += 8;
+            if (pos + length > limit) break;
+            if (magic == MTRK) {
+                trackStarts[trackCount] = (int) pos;
+                trackEnds[trackCount] = (int) (pos + length);
+                trackCount += 1;
+            }
+            pos += length;
+        }
+        if (trackCount < declared) {
+            trackStarts = Arrays.copyOf(trackStarts, trackCount);
+            trackEnds = Arrays.copyOf(trackEnds, trackCount);
+        }
+    }
+
+    Cursor cursor(int track) {
+        return new Cursor(buffer, trackStarts[track], trackEnds[track]);
+    }
+
+    /**
+     * Walk the events of one track.  Each call to nextNote stops at
+     * the next NOTE_ON and leaves its tick, channel, key and velocity
+     * in the fields.  Likewise, nextTempo stops at the next tempo change and
+     * leaves the microseconds per quarter note in tempo.  Program
+     * changes are remembered per channel along the way, and program
+     * is that of the channel of the current note.  Each track starts
+     * with all channels on program 0, so tracks may be walked in any
+     * order.
+     */
+    static final class Cursor {
+        private static final int END = 0;
+        private static final int NOTE = 1;
+        private static final int TEMPO = 2;
+        private final ByteBuffer buffer;
+        private final int start;
+        private final int end;
+        private int pos;
+        private int status;
+        private boolean ended;
+        long tick;
+        final int[] programs = new int[16];
+        int program;
+        int channel;
+        int key;
+        int velocity;
+        int tempo;
+
+        Cursor(final ByteBuffer buffer, final int start, final int end) {
+            this.buffer = buffer;
+            this.start = start;
+            this.end = end;
+            this.pos = start;
+        }
+
+        /**
+         * Go back to the start of the track.
+         */
+        void rewind() {
+            pos = start;
+            status = 0;
+            ended = false;
+            tick = 0L;
+            Arrays.fill(programs, 0);
+        }
+
+        private int read() throws IOException {
+            if (pos >= end) throw new IOException("Unexpected end of track");
+            return buffer.get(pos++) & 0xFF;
+        }
+
+        private long readVarInt() throws IOException {
+            long value = 0L;
+            int b;
+            do {
+                b = read();
+                value = (value << 7) + (b & 0x7F);
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private void skip(long length) throws IOException {
+            if (length < 0 || length > end - pos) throw new IOException("Message length out of bounds: " + length);
+            pos += (int) length;
+        }
+
+        boolean nextNote() throws IOException {
+            int event;
+            do {
+                event = next();
+            } while (event == TEMPO);
+            return event == NOTE;
+        }
+
+        boolean nextTempo() throws IOException {
+            int event;
+            do {
+                event = next();
+            } while (event == NOTE);
+            return event == TEMPO;
+        }
+
+        private int next() throws IOException {
+            while (!ended && pos < end) {
+                tick += readVarInt();
+                int data1 = -1;
+                int b = read();
+                if (b >= 0xF0) {
+                    // Sysex and meta events leave the running status
+                    // alone.  Many files go on without a status byte
+                    // after them.
+                    if (b == 0xF0 || b == 0xF7) {
+                        skip(readVarInt());
+                    } else if (b == 0xFF) {
+                        int type = read();
+                        long length = readVarInt();
+                        if (type == 0x51 && length == 3) {
+                            tempo = (read() << 16) | (read() << 8) | read();
+                            return TEMPO;
+                        }
+                        skip(length);
+                        if (type == 0x2F) ended = true;
+                    } else {
+                        throw new IOException("Invalid status byte: " + b);
+                    }
+                    continue;
+                }
+                if (b >= 0x80) {
+                    status = b;
+                } else {
+                    data1 = b;
+                }
+                switch (status & 0xF0) {
+                case 0x90:
+                    channel = status & 0x0F;
+                    program = programs[channel];
+                    key = (data1 == -1 ? read() : data1) & 0x7F;
+                    velocity = read() & 0x7F;
+                    return NOTE;
+                case 0x80: case 0xA0: case 0xB0: case 0xE0:
+                    if (data1 == -1) read();
+                    read();
+                    break;
+                case 0xC0:
+                    programs[status & 0x0F] = (data1 == -1 ? read() : data1) & 0x7F;
+                    break;
+                case 0xD0:
+                    if (data1 == -1) read();
+                    break;
+                default:
+                    throw new IOException("Invalid status byte: " + status);
+                }
+            }
+            ended = true;
+            return END;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.cavetale.midi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Players which play one song in sync, like the speakers of a venue.
+ * The group keeps one position, which advances once per tick, when
+ * the first active member is ticked; every active member then plays
+ * the same blips at its own location.  A member whose chunk is not
+ * loaded simply misses them and joins in again later, in sync.
+ *
+ * Between notes, the group sleeps, and its members with it; see
+ * MidiWheel.  Anything which changes when the group is due next wakes
+ * all members.
+ *
+ * The group has its own filename, speed and loop setting, see
+ * configure, and members which disagree are not let in.  The song is
+ * the one the latest member loaded, see loaded; members still holding
+ * another one stay silent until they load it.  Each member holds the
+ * song, so it stays cached while any of them plays.
+ */
+final class MidiGroup {
+    final String name;
+    final MidiPlayer cursor = new MidiPlayer();
+    final List<MidiPlayer> members = new ArrayList<>();
+    String filename;
+    // The song and its key, or null before any member loaded it.
+    Midi song;
+    MidiCache.Key songKey;
+    private long lastTick = -1L;
+    private int stepFrom;
+    private int stepTo;
+    // Where to go on from once the song is loaded, or null.
+    MidiCheckpoints.Entry resume;
+
+    MidiGroup(final String name) {
+        this.name = name;
+        this.cursor.name = name;
+    }
+
+    /**
+     * Take over the filename, speed and loop setting of a player.
+     */
+    void configure(MidiPlayer config) {
+        this.filename = config.filename;
+        if (cursor.speed != config.speed) cursor.setSpeed(config.speed);
+        if (cursor.loop != config.loop) {
+            cursor.invalidate();
+            cursor.loop = config.loop;
+        }
+        wakeMembers();
+    }
+
+    /**
+     * Whether a player has the filename, speed and loop setting of
+     * this group.
+     */
+    boolean agrees(MidiPlayer config) {
+        return Objects.equals(filename, config.filename) && cursor.speed == config.speed && cursor.loop == config.loop;
+    }
+
+    /**
+     * Change the speed of the whole group, and of each member, so
+     * they keep agreeing.
+     */
+    void setSpeed(double speed) {
+        cursor.setSpeed(speed);
+        for (MidiPlayer member: members) member.speed = speed;
+        wakeMembers();
+    }
+
+    /**
+     * A member loaded its song.  A song with a new key, or the first
+     * one, becomes the song of the group.
+     */
+    void loaded(MidiPlayer member) {
+        if (song != null && Objects.equals(songKey, member.songKey)) return;
+        song = member.midi;
+        songKey = member.songKey;
+    }
+
+    void tick(MidiPlayer member, MidiListeners listeners) {
+        if (member.midi == null) {
+            member.paused = true;
+            return;
+        }
+        // Still loading the song of the group.
+        if (member.midi != song) return;
+        final long now = listeners.getTick();
+        if (lastTick != now) {
+            lastTick = now;
+            advance(now);
+        }
+        if (cursor.stopped) {
+            member.stopped = true;
+        } else if (stepFrom < stepTo) {
+            member.emit(listeners, cursor.midi, stepFrom, stepTo);
+        }
+    }
+
+    /**
+     * Move the whole group to a position.
+     */
+    void seek(double position) {
+        cursor.seek(position);
+        wakeMembers();
+    }
+
+    private void wakeMembers() {
+        for (MidiPlayer member: members) {
+            if (member.wheel != null) member.wheel.wake(member);
+        }
+    }
+
+    private void advance(long now) {
+        stepFrom = 0;
+        stepTo = 0;
+        if (cursor.midi != song) {
+            cursor.midi = song;
+            cursor.stopped = false;
+            cursor.setup();
+            if (resume != null) {
+                cursor.seek(resume.position);
+                cursor.loops = resume.loops;
+                resume = null;
+            }
+            cursor.clock = now;
+            cursor.wake = now;
+            wakeMembers();
+        } else {
+            cursor.catchUp(now);
+        }
+        if (cursor.stopped || !cursor.peekStep()) return;
+        stepFrom = cursor.stepFrom;
+        stepTo = cursor.stepTo;
+        cursor.takeStep();
+        cursor.clock = now + 1L;
+        cursor.wake = cursor.clock + cursor.idleSteps();
+    }
+}
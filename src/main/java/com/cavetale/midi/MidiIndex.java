@@ -0,0 +1,167 @@
+package com.cavetale.midi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * All midi players, indexed by world and chunk.  Players which can
+ * play are active, all others are dormant, and only active players
+ * are ticked.  Active players wait in the wheel for their next step.
+ * Moving a player from one set to the other, and finding the players
+ * of a chunk, take constant time.
+ */
+final class MidiIndex {
+    private final Map<String, Map<Long, List<MidiPlayer>>> worlds = new HashMap<>();
+    private final Set<MidiPlayer> active = new LinkedHashSet<>();
+    private final Set<MidiPlayer> dormant = new LinkedHashSet<>();
+    private final MidiWheel wheel = new MidiWheel();
+    private final MidiStats stats;
+
+    /**
+     * @param stats where to count players pausing and resuming
+     */
+    MidiIndex(final MidiStats stats) {
+        this.stats = stats;
+    }
+
+    static long chunkKey(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Add a new player.  It starts out dormant.
+     */
+    void add(MidiPlayer mplayer) {
+        mplayer.wheel = wheel;
+        mplayer.paused = true;
+        dormant.add(mplayer);
+        index(mplayer);
+    }
+
+    void remove(MidiPlayer mplayer) {
+        wheel.cancel(mplayer);
+        active.remove(mplayer);
+        dormant.remove(mplayer);
+        unindex(mplayer);
+    }
+
+    /**
+     * Move a player to its new chunk.  Call this after changing the
+     * location of a player, with the old one.
+     */
+    void relocate(MidiPlayer mplayer, String oldWorld, int oldCx, int oldCz) {
+        List<MidiPlayer> list = chunkOf(oldWorld, oldCx, oldCz);
+        if (list != null) removeFrom(list, oldWorld, oldCx, oldCz, mplayer);
+        index(mplayer);
+    }
+
+    void activate(MidiPlayer mplayer) {
+        mplayer.paused = false;
+        mplayer.deferred = 0;
+        if (dormant.remove(mplayer)) {
+            active.add(mplayer);
+            stats.resumes.increment();
+            // Go on from where it paused, right away.
+            mplayer.clock = wheel.next();
+            if (!mplayer.queued) wheel.schedule(mplayer, mplayer.clock);
+        }
+    }
+
+    void deactivate(MidiPlayer mplayer) {
+        mplayer.paused = true;
+        mplayer.forgetLocation();
+        if (active.remove(mplayer)) {
+            if (wheel.cancel(mplayer)) mplayer.catchUp(wheel.next());
+            dormant.add(mplayer);
+            stats.pauses.increment();
+        }
+    }
+
+    /**
+     * Wake up the dormant players of a chunk which have a song.
+     */
+    void chunkLoaded(String world, int x, int z) {
+        List<MidiPlayer> list = chunkOf(world, x, z);
+        if (list == null) return;
+        for (MidiPlayer mplayer: list) {
+            if (mplayer.paused && !mplayer.stopped && mplayer.isReady()) activate(mplayer);
+        }
+    }
+
+    void chunkUnloaded(String world, int x, int z) {
+        List<MidiPlayer> list = chunkOf(world, x, z);
+        if (list == null) return;
+        for (MidiPlayer mplayer: list) {
+            if (!mplayer.paused) deactivate(mplayer);
+        }
+    }
+
+    /**
+     * Put all players of a world to sleep.
+     */
+    void worldUnloaded(String world) {
+        Map<Long, List<MidiPlayer>> chunks = worlds.get(world);
+        if (chunks == null) return;
+        for (List<MidiPlayer> list: chunks.values()) {
+            for (MidiPlayer mplayer: list) deactivate(mplayer);
+        }
+    }
+
+    MidiWheel getWheel() {
+        return wheel;
+    }
+
+    /**
+     * A copy of all players, active ones first.
+     */
+    List<MidiPlayer> getAll() {
+        List<MidiPlayer> result = new ArrayList<>(active.size() + dormant.size());
+        result.addAll(active);
+        result.addAll(dormant);
+        return result;
+    }
+
+    int size() {
+        return active.size() + dormant.size();
+    }
+
+    int activeSize() {
+        return active.size();
+    }
+
+    void clear() {
+        wheel.clear();
+        worlds.clear();
+        active.clear();
+        dormant.clear();
+    }
+
+    private void unindex(MidiPlayer mplayer) {
+        List<MidiPlayer> list = chunkOf(mplayer.world, mplayer.cx, mplayer.cz);
+        if (list != null) removeFrom(list, mplayer.world, mplayer.cx, mplayer.cz, mplayer);
+    }
+
+    private void index(MidiPlayer mplayer) {
+        worlds.computeIfAbsent(mplayer.world, w -> new HashMap<>())
+            .computeIfAbsent(chunkKey(mplayer.cx, mplayer.cz), k -> new ArrayList<>(1))
+            .add(mplayer);
+    }
+
+    private List<MidiPlayer> chunkOf(String world, int x, int z) {
+        Map<Long, List<MidiPlayer>> chunks = worlds.get(world);
+        if (chunks == null) return null;
+        return chunks.get(chunkKey(x, z));
+    }
+
+    private void removeFrom(List<MidiPlayer> list, String world, int x, int z, MidiPlayer mplayer) {
+        list.remove(mplayer);
+        if (!list.isEmpty()) return;
+        Map<Long, List<MidiPlayer>> chunks = worlds.get(world);
+        chunks.remove(chunkKey(x, z));
+        if (chunks.isEmpty()) worlds.remove(world);
+    }
+}
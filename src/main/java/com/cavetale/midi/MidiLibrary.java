@@ -0,0 +1,297 @@
+package com.cavetale.midi;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.logging.Logger;
+import lombok.Getter;
+
+/**
+ * What is known about each song in the plugin folder, so it can be
+ * browsed without opening it.  A scan only looks into songs which are
+ * new or changed since the last one, compiling them along the way,
+ * and saves the result to one file.  Queries are answered from a
+ * sorted snapshot which the scan replaces, so they are cheap and
+ * safe on any thread.
+ *
+ * Play counts are bumped on the main thread and saved with the next
+ * scan.  A song keeps its counter when it is indexed again, so no
+ * play is lost to a scan running at the same time.
+ *
+ * The saved file carries a version.  Songs saved by another version
+ * are indexed again, keeping only their play counts.
+ */
+final class MidiLibrary {
+    static final String FILENAME = "library.state";
+    static final int VERSION = 2;
+    private final File folder;
+    private final File file;
+    private final int maxVoices;
+    private final Logger logger;
+    private volatile NavigableMap<String, Song> songs = Collections.emptyNavigableMap();
+    private boolean loaded;
+    private final AtomicBoolean playsChanged = new AtomicBoolean();
+
+    @Getter
+    static final class Song {
+        String name;
+        long size;
+        long lastModified;
+        // In server ticks at the original tempo.
+        long duration;
+        int notes;
+        int tracks;
+        int channels;
+        int[] programs;
+        int blips;
+        long bytes;
+        AtomicInteger plays = new AtomicInteger();
+
+        /**
+         * Look into a song file.  The song is compiled, so the next
+         * load finds it ready.
+         */
+        static Song of(File file, int maxVoices) throws IOException {
+            Song song = new Song();
+            String filename = file.getName();
+            song.name = filename.substring(0, filename.length() - 4);
+            song.size = file.length();
+            song.lastModified = file.lastModified();
+            int channelMask = 0;
+            boolean[] used = new boolean[128];
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                MidiDecoder decoder = new MidiDecoder(channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size()));
+                song.tracks = decoder.getTrackCount();
+                for (int track = 0; track < decoder.getTrackCount(); track += 1) {
+                    MidiDecoder.Cursor cursor = decoder.cursor(track);
+                    while (cursor.nextNote()) {
+                        if (cursor.velocity == 0) continue;
+                        song.notes += 1;
+                        channelMask |= 1 << cursor.channel;
+                        used[cursor.program] = true;
+                    }
+                }
+            }
+            song.channels = Integer.bitCount(channelMask);
+            int count = 0;
+            for (boolean b: used) if (b) count += 1;
+            song.programs = new int[count];
+            count = 0;
+            for (int i = 0; i < used.length; i += 1) {
+                if (used[i]) song.programs[count++] = i;
+            }
+            Midi midi = MidiBinary.load(file, maxVoices);
+            if (midi == null) throw new IOException("Cannot compile " + file);
+            song.duration = midi.getDuration();
+            song.blips = midi.size();
+            song.bytes = midi.getByteSize();
+            return song;
+        }
+
+        public int getPlays() {
+            return plays.get();
+        }
+
+        boolean usesProgram(int program) {
+            for (int p: programs) {
+                if (p == program) return true;
+            }
+            return false;
+        }
+    }
+
+    MidiLibrary(final File folder, final int maxVoices, final Logger logger) {
+        this.folder = folder;
+        this.file = new File(folder, FILENAME);
+        this.maxVoices = maxVoices;
+        this.logger = logger;
+    }
+
+    /**
+     * Bring the library up to date with the song files.  The first
+     * scan starts from the saved library.  This may take long and
+     * must not be called from the main thread.
+     * @return true if any song was added, changed or removed
+     */
+    synchronized boolean scan() {
+        if (!loaded) {
+            loaded = true;
+            songs = Collections.unmodifiableNavigableMap(read());
+        }
+        final NavigableMap<String, Song> old = songs;
+        final TreeMap<String, Song> result = new TreeMap<>();
+        int indexed = 0;
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File songFile: files) {
+                String filename = songFile.getName();
+                if (!filename.endsWith(".mid")) continue;
+                String name = filename.substring(0, filename.length() - 4);
+                Song song = old.get(name);
+                if (song == null || song.size != songFile.length() || song.lastModified != songFile.lastModified()) {
+                    AtomicInteger plays = song != null ? song.plays : new AtomicInteger();
+                    try {
+                        song = Song.of(songFile, maxVoices);
+                    } catch (Exception e) {
+                        logger.warning("Cannot index " + filename + ": " + e.getMessage());
+                        continue;
+                    }
+                    song.plays = plays;
+                    indexed += 1;
+                }
+                result.put(name, song);
+            }
+        }
+        boolean changed = indexed > 0 || !result.keySet().equals(old.keySet());
+        songs = Collections.unmodifiableNavigableMap(result);
+        if (indexed > 0) logger.info("Song library: indexed " + indexed + " of " + result.size() + " songs");
+        if (changed | playsChanged.getAndSet(false)) {
+            try {
+                write(result);
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Read the saved library.  Songs saved by another version, or
+     * before there were versions, are marked so the scan indexes them
+     * again.
+     */
+    private NavigableMap<String, Song> read() {
+        if (!file.isFile()) return new TreeMap<>();
+        try (FileReader reader = new FileReader(file)) {
+            JsonElement json = new JsonParser().parse(reader);
+            if (json == null || !json.isJsonObject()) return new TreeMap<>();
+            JsonObject root = json.getAsJsonObject();
+            int version = 1;
+            if (root.has("version")) {
+                version = root.get("version").getAsInt();
+                json = root.get("songs");
+            }
+            TreeMap<String, Song> result = new Gson().fromJson(json, new TypeToken<TreeMap<String, Song>>() { }.getType());
+            if (result == null) return new TreeMap<>();
+            for (Song song: result.values()) {
+                if (song.plays == null) song.plays = new AtomicInteger();
+                if (version != VERSION) song.lastModified = -1L;
+            }
+            if (version != VERSION && !result.isEmpty()) {
+                logger.info("Song library: saved by version " + version + ", indexing all songs again");
+            }
+            return result;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return new TreeMap<>();
+        }
+    }
+
+    private void write(NavigableMap<String, Song> map) throws IOException {
+        File tmp = new File(folder, FILENAME + ".tmp");
+        Gson gson = new Gson();
+        JsonObject root = new JsonObject();
+        root.addProperty("version", VERSION);
+        root.add("songs", gson.toJsonTree(map));
+        Files.write(tmp.toPath(), gson.toJson(root).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    int size() {
+        return songs.size();
+    }
+
+    Song get(String name) {
+        return songs.get(name);
+    }
+
+    /**
+     * All songs whose name starts with a prefix, sorted by name.
+     */
+    Collection<Song> find(String prefix) {
+        return songs.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values();
+    }
+
+    /**
+     * The names of all songs which start with a prefix.
+     */
+    List<String> complete(String prefix) {
+        return new ArrayList<>(songs.subMap(prefix, true, prefix + Character.MAX_VALUE, true).keySet());
+    }
+
+    /**
+     * The songs played most, which were played at all.
+     */
+    List<Song> mostPlayed(int count) {
+        List<Song> result = new ArrayList<>();
+        for (Song song: songs.values()) {
+            if (song.getPlays() > 0) result.add(song);
+        }
+        result.sort((a, b) -> Integer.compare(b.getPlays(), a.getPlays()));
+        return result.size() > count ? new ArrayList<>(result.subList(0, count)) : result;
+    }
+
+    /**
+     * Count a play.
+     */
+    void played(String name) {
+        Song song = songs.get(name);
+        if (song == null) return;
+        song.plays.incrementAndGet();
+        playsChanged.set(true);
+    }
+
+    /**
+     * Parse a filter like notes&gt;1000, duration&lt;60 (in seconds),
+     * or program=24.  The fields are duration, notes, tracks,
+     * channels, blips, plays, and program.
+     * @throws IllegalArgumentException if the filter is invalid
+     */
+    static Predicate<Song> filterOf(String term) {
+        int i = 0;
+        while (i < term.length() && "<>=".indexOf(term.charAt(i)) < 0) i += 1;
+        if (i == 0 || i >= term.length() - 1) throw new IllegalArgumentException("Invalid filter: " + term);
+        final String field = term.substring(0, i);
+        final char op = term.charAt(i);
+        final double value = Double.parseDouble(term.substring(i + 1));
+        if (field.equals("program")) {
+            if (op != '=') throw new IllegalArgumentException("Programs can only be compared with =: " + term);
+            return song -> song.usesProgram((int) value);
+        }
+        final ToDoubleFunction<Song> getter;
+        switch (field) {
+        case "duration": getter = song -> song.duration / 20.0; break;
+        case "notes": getter = song -> song.notes; break;
+        case "tracks": getter = song -> song.tracks; break;
+        case "channels": getter = song -> song.channels; break;
+        case "blips": getter = song -> song.blips; break;
+        case "plays": getter = song -> song.getPlays(); break;
+        default: throw new IllegalArgumentException("Unknown field: " + field);
+        }
+        switch (op) {
+        case '<': return song -> getter.applyAsDouble(song) < value;
+        case '>': return song -> getter.applyAsDouble(song) > value;
+        default: return song -> getter.applyAsDouble(song) == value;
+        }
+    }
+}
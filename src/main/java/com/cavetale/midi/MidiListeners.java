@@ -0,0 +1,112 @@
+package com.cavetale.midi;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+/**
+ * The positions of all online players, gathered once per tick and
+ * shared by all midi players.  Sounds which nobody is close enough to
+ * hear are not sent.  Also counts server ticks, and emitted and
+ * culled sounds.
+ */
+final class MidiListeners {
+    private final Map<World, Positions> worlds = new IdentityHashMap<>();
+    private final Location scratch = new Location(null, 0.0, 0.0, 0.0);
+    private final double radius;
+    private int emitted;
+    private int culled;
+    private int lastEmitted;
+    private int lastCulled;
+    private long tick;
+
+    /**
+     * @param radius the hearing distance at volume 1, or 0 to never
+     *   cull.  Louder sounds carry further, like in vanilla.
+     */
+    MidiListeners(final double radius) {
+        this.radius = radius;
+    }
+
+    private static final class Positions {
+        private double[] coords = new double[3 * 16];
+        private int size;
+
+        void add(double x, double y, double z) {
+            if (size == coords.length) coords = Arrays.copyOf(coords, size * 2);
+            coords[size++] = x;
+            coords[size++] = y;
+            coords[size++] = z;
+        }
+    }
+
+    /**
+     * Start a new tick.
+     */
+    void update(Collection<? extends Player> players) {
+        tick += 1L;
+        lastEmitted = emitted;
+        lastCulled = culled;
+        emitted = 0;
+        culled = 0;
+        if (radius <= 0.0) return;
+        for (Positions positions: worlds.values()) positions.size = 0;
+        for (Player player: players) {
+            player.getLocation(scratch);
+            Positions positions = worlds.get(scratch.getWorld());
+            if (positions == null) {
+                positions = new Positions();
+                worlds.put(scratch.getWorld(), positions);
+            }
+            positions.add(scratch.getX(), scratch.getY(), scratch.getZ());
+        }
+        scratch.setWorld(null);
+    }
+
+    boolean canHear(World world, double x, double y, double z, float volume) {
+        if (radius <= 0.0) return true;
+        Positions positions = worlds.get(world);
+        if (positions == null) return false;
+        double r = radius * Math.max(1.0, volume);
+        double rr = r * r;
+        final double[] coords = positions.coords;
+        for (int i = 0; i < positions.size; i += 3) {
+            double dx = coords[i] - x;
+            double dy = coords[i + 1] - y;
+            double dz = coords[i + 2] - z;
+            if (dx * dx + dy * dy + dz * dz <= rr) return true;
+        }
+        return false;
+    }
+
+    void emitted(int count) {
+        emitted += count;
+    }
+
+    void culled(int count) {
+        culled += count;
+    }
+
+    /**
+     * The number of the current tick.
+     */
+    long getTick() {
+        return tick;
+    }
+
+    int getLastEmitted() {
+        return lastEmitted;
+    }
+
+    int getLastCulled() {
+        return lastCulled;
+    }
+
+    void worldUnloaded(World world) {
+        worlds.remove(world);
+    }
+}
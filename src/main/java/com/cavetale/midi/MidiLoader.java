@@ -0,0 +1,150 @@
+package com.cavetale.midi;
+
+import java.io.File;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Loads songs for players on a fixed pool of worker threads.  The
+ * workers only load; they never touch a player.  Each finished load
+ * is put on a lock-free queue, which the main thread drains at the
+ * start of each tick, so all players are only ever changed on the
+ * main thread.  A load which has not started yet can be cancelled.
+ */
+final class MidiLoader {
+    private static final int PENDING = 0;
+    private static final int RUNNING = 1;
+    private static final int CANCELLED = 2;
+    private final MidiCache songs;
+    private final int maxVoices;
+    private final MidiStats stats;
+    private final ExecutorService pool;
+    private final Queue<Load> done = new ConcurrentLinkedQueue<>();
+
+    static final class Load {
+        final MidiPlayer player;
+        final int generation;
+        final File file;
+        final boolean stream;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private Future<?> future;
+        // Set by the worker, read after draining.
+        Midi midi;
+        MidiStream midiStream;
+
+        Load(final MidiPlayer player, final int generation, final File file, final boolean stream) {
+            this.player = player;
+            this.generation = generation;
+            this.file = file;
+            this.stream = stream;
+        }
+
+        boolean failed() {
+            return stream ? midiStream == null : midi == null;
+        }
+    }
+
+    /**
+     * @param threads the number of workers, or 0 for one per core
+     */
+    MidiLoader(final MidiCache songs, final int maxVoices, final MidiStats stats, final int threads) {
+        this.songs = songs;
+        this.maxVoices = maxVoices;
+        this.stats = stats;
+        int count = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger serial = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(count, r -> {
+                Thread thread = new Thread(r, "Midi-Loader-" + serial.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * Load the song of a player, or open it for streaming.  The
+     * player is told about it via drain.
+     */
+    Load submit(MidiPlayer mplayer, int generation, File file, boolean stream) {
+        final Load load = new Load(mplayer, generation, file, stream);
+        stats.pendingLoads.incrementAndGet();
+        load.future = pool.submit(() -> run(load));
+        return load;
+    }
+
+    private void run(Load load) {
+        if (!load.state.compareAndSet(PENDING, RUNNING)) return;
+        try {
+            if (load.stream) {
+                load.midiStream = MidiStream.open(load.file, maxVoices);
+            } else {
+                load.midi = songs.acquire(load.file);
+            }
+        } finally {
+            done.offer(load);
+        }
+    }
+
+    /**
+     * Cancel a load unless it already started.  A load which did
+     * start still comes out of drain.
+     * @return true if it was cancelled
+     */
+    boolean cancel(Load load) {
+        if (!load.state.compareAndSet(PENDING, CANCELLED)) return false;
+        load.future.cancel(false);
+        stats.pendingLoads.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Hand all finished loads to the callback.  Call this from the
+     * main thread.
+     */
+    void drain(Consumer<Load> callback) {
+        Load load;
+        while ((load = done.poll()) != null) {
+            stats.pendingLoads.decrementAndGet();
+            callback.accept(load);
+        }
+    }
+
+    /**
+     * Give back what a load which is not going to be used got hold
+     * of.  Call this from the main thread.
+     */
+    void release(Load load) {
+        if (load.midi != null) {
+            songs.release(load.midi);
+            load.midi = null;
+        }
+        // Only mapped memory, which goes with the last reference.
+        load.midiStream = null;
+    }
+
+    /**
+     * Stop the workers, wait for those still loading, and release all
+     * loads which were not drained.
+     * @return false if some worker did not finish in time
+     */
+    boolean stop() {
+        pool.shutdownNow();
+        boolean finished = false;
+        try {
+            finished = pool.awaitTermination(10L, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        Load load;
+        while ((load = done.poll()) != null) {
+            stats.pendingLoads.decrementAndGet();
+            release(load);
+        }
+        return finished;
+    }
+}
@@ -0,0 +1,195 @@
+package com.cavetale.midi;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The upcoming server ticks of one player, worked out ahead of time
+ * on the worker thread.  Each step holds the range of blips which are
+ * due on that tick, and the step count after it, so the main thread
+ * only has to send them.  Positions are worked out from the count,
+ * like MidiPlayer.positionAfter, so they match to the last bit.  Only compiled songs are looked ahead, as
+ * they may be read from any thread.
+ *
+ * The steps form a ring buffer with one writer, the worker, and one
+ * reader, the main thread.  The write position is stored together
+ * with a version number.  Any change to the player which the steps
+ * depend on, like speed or position, bumps the version and empties
+ * the buffer; steps the worker is still busy with are then rejected.
+ */
+final class MidiLookahead {
+    private final Worker worker;
+    private final int mask;
+    private final int[] froms;
+    private final int[] tos;
+    private final double[] origins;
+    private final long[] counts;
+    // Version in the high, write position in the low 32 bits.
+    private final AtomicLong state = new AtomicLong();
+    private volatile int head;
+    private volatile boolean busy;
+    // Where to go on from, set by the main thread before the
+    // lookahead is queued.
+    private Midi midi;
+    private int version;
+    private int startIndex;
+    private double startOrigin;
+    private long startCount;
+    private double speed;
+    private boolean loop;
+
+    /**
+     * @param steps the server ticks to look ahead.  This is rounded
+     *   up to a power of two.
+     */
+    MidiLookahead(final Worker worker, final int steps) {
+        this.worker = worker;
+        int capacity = Integer.highestOneBit(Math.max(2, steps - 1)) << 1;
+        this.mask = capacity - 1;
+        this.froms = new int[capacity];
+        this.tos = new int[capacity];
+        this.origins = new double[capacity];
+        this.counts = new long[capacity];
+    }
+
+    private static long pack(int version, int tail) {
+        return ((long) version << 32) | (tail & 0xFFFFFFFFL);
+    }
+
+    boolean isEmpty() {
+        return (int) state.get() == head;
+    }
+
+    /**
+     * The first blip due on the next step.
+     */
+    int peekFrom() {
+        return froms[head & mask];
+    }
+
+    /**
+     * The first blip after the next step.
+     */
+    int peekTo() {
+        return tos[head & mask];
+    }
+
+    void poll() {
+        head = head + 1;
+    }
+
+    /**
+     * Drop the next steps, if there are that many.
+     * @return false if there are fewer
+     */
+    boolean skip(long steps) {
+        if (steps > (int) state.get() - head) return false;
+        head = head + (int) steps;
+        return true;
+    }
+
+    /**
+     * Drop all steps, including those in the making.
+     */
+    void reset() {
+        long s = state.get();
+        state.set(pack((int) (s >>> 32) + 1, head));
+    }
+
+    /**
+     * Have the worker top up the steps, if they run low.
+     */
+    void request(MidiPlayer mplayer) {
+        if (busy) return;
+        long s = state.get();
+        int tail = (int) s;
+        if (tail - head > mask / 2) return;
+        midi = mplayer.midi;
+        version = (int) (s >>> 32);
+        speed = mplayer.speed;
+        loop = mplayer.loop;
+        if (tail != head) {
+            int last = (tail - 1) & mask;
+            startIndex = tos[last];
+            startOrigin = origins[last];
+            startCount = counts[last];
+        } else {
+            startIndex = mplayer.index;
+            startOrigin = mplayer.origin;
+            startCount = mplayer.steps;
+        }
+        busy = true;
+        if (!worker.queue.offer(this)) busy = false;
+    }
+
+    /**
+     * Work out steps until the buffer is full, the song ends, or the
+     * version changes.  Mirrors MidiPlayer.tick.
+     */
+    private void fill() {
+        final long[] blips = midi.getTicks();
+        int tail = (int) state.get();
+        int index = startIndex;
+        double origin = startOrigin;
+        long count = startCount;
+        while (tail - head <= mask) {
+            if (index >= blips.length) {
+                if (!loop || blips.length == 0) break;
+                index = 0;
+                origin = blips[0];
+                count = 0L;
+            }
+            final double tick = origin + count * speed;
+            int slot = tail & mask;
+            froms[slot] = index;
+            while (index < blips.length && blips[index] <= tick) index += 1;
+            count += 1L;
+            tos[slot] = index;
+            origins[slot] = origin;
+            counts[slot] = count;
+            if (!state.compareAndSet(pack(version, tail), pack(version, tail + 1))) break;
+            tail += 1;
+        }
+        midi = null;
+        busy = false;
+    }
+
+    /**
+     * The thread which fills all lookaheads.
+     */
+    static final class Worker implements Runnable {
+        private final BlockingQueue<MidiLookahead> queue = new ArrayBlockingQueue<>(4096);
+        private Thread thread;
+        private volatile boolean running;
+
+        void start() {
+            running = true;
+            thread = new Thread(this, "Midi-Lookahead");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() {
+            running = false;
+            thread.interrupt();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    MidiLookahead lookahead = queue.take();
+                    try {
+                        lookahead.fill();
+                    } catch (RuntimeException re) {
+                        re.printStackTrace();
+                        lookahead.busy = false;
+                    }
+                }
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+}
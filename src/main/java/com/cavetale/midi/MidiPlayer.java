@@ -1,39 +1,293 @@
 package com.cavetale.midi;
 
-import java.util.List;
+import java.io.IOException;
 import lombok.Getter;
 import lombok.Setter;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
+import org.bukkit.Sound;
 import org.bukkit.SoundCategory;
 import org.bukkit.World;
 
 @Getter @Setter
 final class MidiPlayer {
+    /**
+     * The fastest speed allowed.
+     */
+    static final double MAX_SPEED = 8.0;
+    /**
+     * The original tempo in player files from before speed was a
+     * tempo multiplier.  Speeds from here up are in that old unit.
+     */
+    static final double LEGACY_SPEED = 20.0;
     String world;
     double x, y, z;
-    long speed = 20L;
+    double speed = 1.0;
     float volume = 1.0f;
     String filename;
     boolean loop;
+    boolean stream;
+    Backlog backlog = Backlog.CARRY;
+    String group;
     transient String name;
+    transient boolean persistent;
+    transient int generation;
+    transient MidiCache.Key songKey;
     transient Midi midi;
+    transient MidiStream midiStream;
     transient boolean paused;
     transient boolean stopped;
     transient int index;
-    transient long tick;
+    // The position in the song, which is always origin plus steps
+    // times speed.  Working it out from the count, rather than adding
+    // up, makes skipping many steps at once land exactly where
+    // stepping one at a time does.
+    transient double tick;
+    transient double origin;
+    transient long steps;
     transient int cx, cz;
+    // Resolved once, then reused by every tick until the chunk or
+    // world goes away.
+    transient Location location;
+    // Ticks missed because the scheduler ran out of time.
+    transient int deferred;
+    // Upcoming ticks of a compiled song, or null.
+    transient MidiLookahead lookahead;
+    // The group which plays for this player, or null.
+    transient MidiGroup midiGroup;
+    // The step found by peekStep.
+    transient int stepFrom;
+    transient int stepTo;
+    transient boolean stepAhead;
+    // Times the song started over.
+    transient int loops;
+    // Where to resume once the song is loaded, or null.
+    transient MidiCheckpoints.Entry checkpoint;
+    // The server tick of the next step, which the position is worked
+    // out for, and the one the player may sleep until.
+    transient long clock;
+    transient long wake;
+    // The wheel which wakes this player, and its place in it.
+    transient MidiWheel wheel;
+    transient int wheelSlot = -1;
+    transient MidiPlayer wheelPrev;
+    transient MidiPlayer wheelNext;
+    // Due, but waiting for its turn in the scheduler.
+    transient boolean queued;
+    // The song being loaded, or null.
+    transient MidiLoader.Load load;
+
+    /**
+     * What to do with the ticks a player missed.
+     */
+    enum Backlog {
+        /**
+         * Play on from where the player stopped, a little late.
+         */
+        CARRY,
+        /**
+         * Skip the blips of the missed ticks, to stay on time.
+         */
+        DROP;
+    }
 
     void setup() {
+        invalidate();
         this.index = 0;
-        if (this.midi.getBlips().isEmpty()) return;
-        this.tick = this.midi.getBlips().get(0).tick;
+        if (this.midiStream != null) {
+            try {
+                if (this.midiStream.getOffset() > 0L) this.midiStream.rewind();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                this.stopped = true;
+                return;
+            }
+            if (this.midiStream.isEmpty()) return;
+            moveTo(this.midiStream.peekTick());
+        } else {
+            if (this.midi.size() == 0) return;
+            moveTo(this.midi.getTicks()[0]);
+        }
+    }
+
+    /**
+     * Count the steps from a new position.
+     */
+    private void moveTo(double position) {
+        this.origin = position;
+        this.steps = 0L;
+        this.tick = position;
+    }
+
+    /**
+     * Advance the position by a number of steps.
+     */
+    private void step(long count) {
+        this.steps += count;
+        this.tick = positionAfter(0L);
+    }
+
+    /**
+     * The position after some more steps at the current speed.
+     */
+    double positionAfter(long count) {
+        return this.origin + (this.steps + count) * this.speed;
+    }
+
+    void updateChunk() {
         this.cx = (int)Math.floor(this.x) >> 4;
         this.cz = (int)Math.floor(this.z) >> 4;
+        this.location = null;
     }
 
     void stop() {
         this.stopped = true;
+        invalidate();
+    }
+
+    /**
+     * Drop the lookahead and wake the player.  Call this before
+     * changing anything which decides what plays when.
+     */
+    void invalidate() {
+        if (this.lookahead != null) this.lookahead.reset();
+        if (this.wheel != null) this.wheel.wake(this);
+    }
+
+    /**
+     * Change the speed.  Members of a group change that of the whole
+     * group.
+     */
+    void setSpeed(double speed) {
+        if (this.midiGroup != null) {
+            this.midiGroup.setSpeed(speed);
+            return;
+        }
+        invalidate();
+        moveTo(this.tick);
+        this.speed = speed;
+    }
+
+    /**
+     * Work out the position at a server tick, over the steps slept
+     * through since the last one, but not past the planned wake.  No
+     * blips are due on these steps.
+     */
+    void catchUp(long now) {
+        long until = Math.min(now, this.wake);
+        if (until <= this.clock) return;
+        long count = until - this.clock;
+        this.clock = until;
+        step(count);
+        if (this.lookahead != null && !this.lookahead.skip(count)) this.lookahead.reset();
+    }
+
+    /**
+     * The steps, starting with the next one, on which no blip is due,
+     * so the player may sleep through them.  Members of a group sleep
+     * as long as their group.
+     */
+    long idleSteps() {
+        if (this.midiGroup != null) {
+            MidiPlayer cursor = this.midiGroup.cursor;
+            return cursor.stopped ? 0L : Math.max(0L, cursor.wake - cursor.clock);
+        }
+        final double next;
+        if (this.midiStream != null) {
+            if (this.midiStream.isEmpty()) return 0L;
+            next = this.midiStream.peekTick();
+        } else if (this.midi != null) {
+            if (this.index >= this.midi.size()) return 0L;
+            next = this.midi.getTicks()[this.index];
+        } else {
+            return 0L;
+        }
+        if (next <= this.tick) return 0L;
+        long idle = (long) Math.min(Math.floor((next - this.tick) / this.speed), (double) Integer.MAX_VALUE);
+        if (idle >= Integer.MAX_VALUE) return idle;
+        // The estimate may be off by one either way.  Settle it on
+        // the positions the steps really reach.
+        while (idle > 1L && positionAfter(idle - 1L) >= next) idle -= 1L;
+        while (positionAfter(idle) < next) idle += 1L;
+        return idle;
+    }
+
+    /**
+     * The position in the song, which is that of the group for its
+     * members.
+     */
+    double getPosition() {
+        return this.midiGroup != null ? this.midiGroup.cursor.tick : this.tick;
+    }
+
+    boolean isReady() {
+        return this.midi != null || this.midiStream != null;
+    }
+
+    /**
+     * Jump to a position in the song, in server ticks at the original
+     * tempo.  Blips before the position are skipped.  A compiled song
+     * finds the spot by binary search, a stream has to read its way
+     * there.  Members of a group move the whole group.
+     */
+    void seek(double position) {
+        if (this.midiGroup != null) {
+            this.midiGroup.seek(position);
+            return;
+        }
+        invalidate();
+        if (this.midiStream != null) {
+            try {
+                if (this.midiStream.getOffset() > 0L) this.midiStream.rewind();
+                while (!this.midiStream.isEmpty() && this.midiStream.peekTick() < position) {
+                    this.midiStream.poll();
+                }
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                this.stopped = true;
+                return;
+            }
+        } else if (this.midi != null) {
+            this.index = this.midi.indexOf(position);
+        } else {
+            return;
+        }
+        moveTo(position);
+        // Nothing to catch up on from here.
+        this.wake = this.clock;
+    }
+
+    /**
+     * Go on from the checkpoint, if any, now that the song is loaded.
+     * Members of a group leave this to their group.
+     */
+    void resume() {
+        MidiCheckpoints.Entry entry = this.checkpoint;
+        this.checkpoint = null;
+        if (entry == null || this.midiGroup != null) return;
+        seek(entry.position);
+        this.loops = entry.loops;
+    }
+
+    /**
+     * Take over the settings of a freshly read player file.
+     */
+    void updateFrom(MidiPlayer config) {
+        invalidate();
+        moveTo(this.tick);
+        this.world = config.world;
+        this.x = config.x;
+        this.y = config.y;
+        this.z = config.z;
+        this.speed = config.speed;
+        this.volume = config.volume;
+        this.filename = config.filename;
+        this.loop = config.loop;
+        this.stream = config.stream;
+        this.backlog = config.backlog;
+        this.group = config.group;
+        this.songKey = config.songKey;
+        updateChunk();
     }
 
     void setLocation(Location location) {
@@ -41,43 +295,198 @@ final class MidiPlayer {
         this.x = location.getX();
         this.y = location.getY();
         this.z = location.getZ();
-        this.cx = (int)Math.floor(this.x) >> 4;
-        this.cz = (int)Math.floor(this.z) >> 4;
+        updateChunk();
     }
 
+    /**
+     * Get the location to play at.  The world and chunk are checked
+     * only the first time; after that, the same location is returned
+     * until forgetLocation is called.
+     */
     Location getLocation() {
+        if (this.location != null) return this.location;
         World bworld = Bukkit.getWorld(this.world);
         if (bworld == null || !bworld.isChunkLoaded(cx, cz)) {
             this.paused = true;
             return null;
         }
-        return new Location(bworld, this.x, this.y, this.z);
+        this.location = new Location(bworld, this.x, this.y, this.z);
+        return this.location;
+    }
+
+    /**
+     * Drop the resolved location, once its chunk or world is
+     * unloaded.
+     */
+    void forgetLocation() {
+        this.location = null;
+    }
+
+    /**
+     * Skip the blips of the ticks which were missed.
+     */
+    private void dropBacklog() {
+        invalidate();
+        double position = positionAfter(this.deferred - 1);
+        step(this.deferred);
+        if (this.midiStream != null) {
+            try {
+                while (!this.midiStream.isEmpty() && this.midiStream.peekTick() <= position) {
+                    this.midiStream.poll();
+                }
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                this.stopped = true;
+            }
+        } else if (this.midi != null) {
+            final long[] ticks = this.midi.getTicks();
+            while (ticks.length > this.index && ticks[index] <= position) this.index += 1;
+        }
     }
 
-    public void tick() {
+    /**
+     * Play all blips which are due, unless nobody is there to hear
+     * them, and advance.  Members of a group leave the advancing to
+     * their group.
+     */
+    public void tick(MidiListeners listeners) {
         if (stopped) return;
         if (paused) return;
+        if (this.midiGroup != null) {
+            this.deferred = 0;
+            this.midiGroup.tick(this, listeners);
+            return;
+        }
+        if (this.deferred > 0) {
+            if (this.backlog == Backlog.DROP) dropBacklog();
+            this.deferred = 0;
+            if (stopped) return;
+        }
+        if (this.midiStream != null) {
+            if (tickStream(listeners)) step(1L);
+            return;
+        }
         if (this.midi == null) {
             paused = true;
             return;
         }
-        List<Midi.Blip> blips = this.midi.getBlips();
-        if (blips.size() <= this.index) {
+        if (!peekStep()) return;
+        if (stepFrom < stepTo && !emit(listeners, this.midi, stepFrom, stepTo)) return;
+        takeStep();
+    }
+
+    /**
+     * Find the blips of the next tick of a compiled song, from
+     * stepFrom up to stepTo, without advancing.  They come from the
+     * lookahead if it has them.
+     * @return false if the song is over
+     */
+    boolean peekStep() {
+        if (this.lookahead != null) {
+            if (!this.lookahead.isEmpty()) {
+                this.stepFrom = this.lookahead.peekFrom();
+                this.stepTo = this.lookahead.peekTo();
+                this.stepAhead = true;
+                return true;
+            }
+            this.lookahead.reset();
+        }
+        final long[] ticks = this.midi.getTicks();
+        if (ticks.length <= this.index) {
             if (this.loop) {
+                this.loops += 1;
                 setup();
             } else {
                 stopped = true;
-                return;
+                return false;
+            }
+        }
+        int to = this.index;
+        while (ticks.length > to && ticks[to] <= this.tick) to += 1;
+        this.stepFrom = this.index;
+        this.stepTo = to;
+        this.stepAhead = false;
+        return true;
+    }
+
+    /**
+     * Move past the step found by peekStep.
+     */
+    void takeStep() {
+        // The lookahead starts over by itself.
+        if (this.stepAhead && this.stepFrom < this.index) {
+            this.loops += 1;
+            moveTo(this.midi.getTicks()[0]);
+        }
+        this.index = this.stepTo;
+        step(1L);
+        if (this.lookahead != null) {
+            if (this.stepAhead) this.lookahead.poll();
+            this.lookahead.request(this);
+        }
+    }
+
+    /**
+     * Play a range of blips at this player's location, unless nobody
+     * is there to hear them.
+     * @return false if the location is gone and the player paused
+     */
+    boolean emit(MidiListeners listeners, Midi song, int from, int to) {
+        final Location loc = getLocation();
+        if (loc == null) return false;
+        final World bworld = loc.getWorld();
+        if (listeners.canHear(bworld, this.x, this.y, this.z, this.volume)) {
+            final byte[] sounds = song.getSounds();
+            final float[] pitches = song.getPitches();
+            final Sound[] palette = song.getPalette();
+            for (int i = from; i < to; i += 1) {
+                bworld.playSound(loc, palette[sounds[i] & 0xFF], SoundCategory.MASTER, this.volume, pitches[i]);
             }
+            listeners.emitted(to - from);
+        } else {
+            listeners.culled(to - from);
         }
-        Location location = null;
-        while (blips.size() > this.index && blips.get(index).tick <= this.tick) {
-            Midi.Blip blip = blips.get(index);
-            if (location == null) location = getLocation();
-            if (location == null) return;
-            location.getWorld().playSound(location, blip.sound, SoundCategory.MASTER, this.volume, blip.pitch);
-            this.index += 1;
+        return true;
+    }
+
+    /**
+     * Play the due blips of the stream.
+     * @return true if the player may advance, false otherwise
+     */
+    private boolean tickStream(MidiListeners listeners) {
+        if (this.midiStream.isEmpty()) {
+            if (this.loop) {
+                this.loops += 1;
+                setup();
+                if (stopped) return false;
+            } else {
+                stopped = true;
+                return false;
+            }
+        }
+        if (this.midiStream.isEmpty() || this.midiStream.peekTick() > this.tick) return true;
+        final Location loc = getLocation();
+        if (loc == null) return false;
+        final World bworld = loc.getWorld();
+        final boolean heard = listeners.canHear(bworld, this.x, this.y, this.z, this.volume);
+        int count = 0;
+        try {
+            do {
+                if (heard) bworld.playSound(loc, this.midiStream.peekSound(), SoundCategory.MASTER, this.volume, this.midiStream.peekPitch());
+                this.midiStream.poll();
+                count += 1;
+            } while (!this.midiStream.isEmpty() && this.midiStream.peekTick() <= this.tick);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            stopped = true;
+            return false;
+        } finally {
+            if (heard) {
+                listeners.emitted(count);
+            } else {
+                listeners.culled(count);
+            }
         }
-        this.tick += speed;
+        return true;
     }
 }
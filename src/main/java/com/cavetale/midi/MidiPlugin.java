@@ -6,42 +6,168 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.bukkit.Chunk;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
 
 public final class MidiPlugin extends JavaPlugin implements Runnable, Listener {
-    List<MidiPlayer> midiPlayers;
+    final MidiStats stats = new MidiStats();
+    final MidiIndex players = new MidiIndex(stats);
+    final Map<String, MidiGroup> groups = new HashMap<>();
+    MidiCache songs;
+    MidiLibrary library;
+    // Songs kept cached by prewarm.
+    private List<Midi> pinned = new ArrayList<>();
+    private int prewarmSongs;
+    // Null if checkpoints are off.
+    private MidiCheckpoints checkpoints;
+    private MidiWatcher watcher;
+    private MidiListeners listeners;
+    private MidiScheduler scheduler;
+    private MidiLookahead.Worker lookaheadWorker;
+    private MidiLoader loader;
+    // The last precompile job, and the task reporting its progress.
+    private MidiPrecompile precompile;
+    private BukkitTask precompileTask;
+    private int lookaheadTicks;
+    private int reloadSerial;
 
     @Override
     public void onEnable() {
-        loadPlayers();
+        saveDefaultConfig();
+        listeners = new MidiListeners(getConfig().getDouble("listener-radius"));
+        final int maxVoices = getConfig().getInt("max-voices-per-tick");
+        songs = new MidiCache(maxVoices, getLogger(), stats);
+        library = new MidiLibrary(getDataFolder(), maxVoices, getLogger());
+        prewarmSongs = getConfig().getInt("prewarm-songs");
+        lookaheadTicks = getConfig().getInt("lookahead-ticks");
+        if (lookaheadTicks > 0) {
+            lookaheadWorker = new MidiLookahead.Worker();
+            lookaheadWorker.start();
+        }
+        loader = new MidiLoader(songs, maxVoices, stats, getConfig().getInt("load-threads"));
+        scheduler = new MidiScheduler(players, listeners, this::forgetPlayer, stats, getConfig().getLong("tick-budget-nanos"));
+        registerStats();
+        long checkpointInterval = getConfig().getLong("checkpoint-interval");
+        if (checkpointInterval > 0L) {
+            checkpoints = new MidiCheckpoints(this);
+            getServer().getScheduler().runTaskTimer(this, checkpoints::checkpoint, checkpointInterval, checkpointInterval);
+        }
+        reloadPlayers();
         getServer().getScheduler().runTaskTimer(this, this, 1L, 1L);
         getServer().getPluginManager().registerEvents(this, this);
+        if (getConfig().getBoolean("watch-files")) {
+            watcher = new MidiWatcher(this, getConfig().getLong("watch-delay"));
+            try {
+                watcher.start();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                watcher = null;
+            }
+        }
     }
 
     @Override
     public void onDisable() {
-        midiPlayers.clear();
+        if (checkpoints != null && !checkpoints.save()) getLogger().warning("Checkpoints still being written after 5 seconds");
+        if (watcher != null) {
+            watcher.stop();
+            watcher = null;
+        }
+        if (lookaheadWorker != null) {
+            lookaheadWorker.stop();
+            lookaheadWorker = null;
+        }
+        if (!loader.stop()) getLogger().warning("Song loader still busy after 10 seconds");
+        if (precompile != null) {
+            precompile.cancel();
+            precompile = null;
+        }
+        for (MidiPlayer mplayer: players.getAll()) releaseSong(mplayer);
+        for (Midi midi: pinned) songs.release(midi);
+        pinned.clear();
+        players.clear();
+        groups.clear();
+        checkpoints = null;
+        unregisterStats();
     }
 
-    void loadPlayers() {
+    /**
+     * Expose the stats as a JMX MBean, in place of any left over by
+     * an earlier instance of the plugin.
+     */
+    void registerStats() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MidiStats.OBJECT_NAME);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(stats, name);
+        } catch (JMException jme) {
+            jme.printStackTrace();
+        }
+    }
+
+    void unregisterStats() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MidiStats.OBJECT_NAME);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+        } catch (JMException jme) {
+            jme.printStackTrace();
+        }
+    }
+
+    File songFileOf(MidiPlayer mplayer) {
+        return new File(getDataFolder(), mplayer.filename + ".mid");
+    }
+
+    MidiCache.Key songKeyOf(MidiPlayer mplayer) {
+        try {
+            return MidiCache.keyOf(songFileOf(mplayer));
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * Read all player files, and the checkpoints they resume from.
+     * Live players are not touched, so this may be called from any
+     * thread.
+     */
+    Map<String, MidiPlayer> readPlayers() {
         File dir = new File(getDataFolder(), "players");
         dir.mkdirs();
         Gson gson = new Gson();
-        this.midiPlayers = new ArrayList<>();
-        for (File file: dir.listFiles()) {
+        final MidiCheckpoints.State state = checkpoints != null ? checkpoints.read() : null;
+        Map<String, MidiPlayer> result = new HashMap<>();
+        File[] files = dir.listFiles();
+        if (files == null) return result;
+        for (File file: files) {
             if (!file.getName().endsWith(".json")) continue;
             try (FileReader reader = new FileReader(file)) {
                 final MidiPlayer mplayer = gson.fromJson(reader, MidiPlayer.class);
+                if (mplayer == null) continue;
                 if (mplayer.filename == null) {
                     getLogger().warning("Missing filename in " + file);
                 }
@@ -50,37 +176,283 @@ public final class MidiPlugin extends JavaPlugin implements Runnable, Listener {
                 }
                 mplayer.name = file.getName();
                 mplayer.name = mplayer.name.substring(0, mplayer.name.length() - 5);
-                getLogger().info("Starting player: " + mplayer.name);
-                mplayer.paused = true;
-                this.midiPlayers.add(mplayer);
-                final File mfile = new File(getDataFolder(), mplayer.filename + ".mid");
-                getServer().getScheduler().runTaskAsynchronously(this, () -> {
-                        Midi midi = Midi.load(mfile);
-                        if (midi == null) {
-                            mplayer.stopped = true;
-                        } else {
-                            mplayer.midi = midi;
-                            mplayer.setup();
-                            mplayer.paused = false;
-                        }
-                    });
+                if (mplayer.speed >= MidiPlayer.LEGACY_SPEED && mplayer.speed / MidiPlayer.LEGACY_SPEED <= MidiPlayer.MAX_SPEED) {
+                    double speed = mplayer.speed / MidiPlayer.LEGACY_SPEED;
+                    getLogger().warning("Speed " + mplayer.speed + " is in the old unit, playing at " + speed + " instead."
+                                        + " Speed is a tempo multiplier, 1.0 being the original tempo: " + file);
+                    mplayer.speed = speed;
+                } else if (mplayer.speed <= 0.0 || mplayer.speed > MidiPlayer.MAX_SPEED) {
+                    getLogger().warning("Speed " + mplayer.speed + " is out of range, not loading " + file
+                                        + ". Speed is a tempo multiplier from 0 to " + MidiPlayer.MAX_SPEED + ", 1.0 being the original tempo.");
+                    continue;
+                }
+                if (mplayer.stream && mplayer.group != null) {
+                    getLogger().warning("Group members play the compiled song, not a stream, in " + file);
+                }
+                mplayer.updateChunk();
+                mplayer.persistent = true;
+                mplayer.songKey = songKeyOf(mplayer);
+                if (state != null && mplayer.songKey != null) {
+                    MidiCheckpoints.Entry entry = mplayer.group != null
+                        ? state.groups.get(mplayer.group)
+                        : state.players.get(mplayer.name);
+                    if (entry != null && mplayer.songKey.equals(entry.song)) mplayer.checkpoint = entry;
+                }
+                result.put(mplayer.name, mplayer);
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
-        getLogger().info("" + this.midiPlayers.size() + " midi players loaded.");
+        return result;
     }
 
-    @Override
-    public void run() {
-        for (Iterator<MidiPlayer> iter = midiPlayers.iterator(); iter.hasNext();) {
-            MidiPlayer mplayer = iter.next();
-            if (mplayer.stopped) {
-                iter.remove();
-            } else if (!mplayer.paused) {
-                mplayer.tick();
+    /**
+     * Read the player files asynchronously, then bring the live
+     * players up to date on the main thread.  Only the latest of
+     * several overlapping reloads is applied.  The song library is
+     * scanned afterwards, in the same background task.
+     */
+    void reloadPlayers() {
+        final int serial = ++reloadSerial;
+        getServer().getScheduler().runTaskAsynchronously(this, () -> {
+                Map<String, MidiPlayer> configs = readPlayers();
+                getServer().getScheduler().runTask(this, () -> {
+                        if (serial == reloadSerial) applyPlayers(configs);
+                    });
+                library.scan();
+                prewarm();
+            });
+    }
+
+    /**
+     * Load the most played songs and keep them cached, so players
+     * start them right away.  This blocks and must not be called
+     * from the main thread.  The songs kept before are given back
+     * once the new ones are loaded.
+     */
+    void prewarm() {
+        if (prewarmSongs <= 0) return;
+        final List<Midi> midis = new ArrayList<>();
+        for (MidiLibrary.Song song: library.mostPlayed(prewarmSongs)) {
+            Midi midi = songs.acquire(new File(getDataFolder(), song.getName() + ".mid"));
+            if (midi != null) midis.add(midi);
+        }
+        getServer().getScheduler().runTask(this, () -> {
+                for (Midi midi: pinned) songs.release(midi);
+                pinned = midis;
+            });
+    }
+
+    /**
+     * Compare the player files with the live players.  Players which
+     * did not change keep playing untouched.  Changed players are
+     * updated in place, and only reload their song if it changed.
+     *
+     * Each group takes its filename, speed and loop setting from the
+     * file of its member which comes first by name.  Members which
+     * disagree are left out, and do not play, until their file or the
+     * group changes.
+     */
+    void applyPlayers(Map<String, MidiPlayer> configs) {
+        Gson gson = new Gson();
+        Map<String, MidiPlayer> live = new HashMap<>();
+        for (MidiPlayer mplayer: players.getAll()) {
+            if (mplayer.persistent && !mplayer.stopped) live.put(mplayer.name, mplayer);
+        }
+        Map<String, MidiPlayer> leaders = new HashMap<>();
+        for (MidiPlayer config: configs.values()) {
+            if (config.group == null) continue;
+            MidiPlayer leader = leaders.get(config.group);
+            if (leader == null || config.name.compareTo(leader.name) < 0) leaders.put(config.group, config);
+        }
+        for (MidiGroup group: groups.values()) {
+            MidiPlayer leader = leaders.get(group.name);
+            if (leader == null || group.agrees(leader)) continue;
+            getLogger().info("Group " + group.name + " now follows " + leader.name);
+            group.configure(leader);
+        }
+        int added = 0;
+        int changed = 0;
+        int removed = 0;
+        for (MidiPlayer mplayer: live.values()) {
+            if (configs.containsKey(mplayer.name)) continue;
+            getLogger().info("Stopping player: " + mplayer.name);
+            stopPlayer(mplayer);
+            removed += 1;
+        }
+        for (MidiPlayer config: configs.values()) {
+            MidiPlayer mplayer = live.get(config.name);
+            final MidiPlayer leader = config.group != null ? leaders.get(config.group) : null;
+            final boolean leftOut = leader != null && !sameGroupSettings(config, leader);
+            if (leftOut) {
+                getLogger().warning("Group " + config.group + " plays " + leader.filename + " at speed " + leader.speed
+                                    + (leader.loop ? ", looped," : "") + " like " + leader.name + ", but " + config.name
+                                    + " does not.  It is left out.");
+            }
+            if (mplayer == null) {
+                getLogger().info("Starting player: " + config.name);
+                players.add(config);
+                added += 1;
+                if (leftOut) continue;
+                if (checkpoints != null) checkpoints.seed(config);
+                joinGroup(config, leader);
+                startPlayer(config);
+                continue;
+            }
+            boolean groupChanged = !Objects.equals(mplayer.group, config.group)
+                || (mplayer.midiGroup != null) != (leader != null && !leftOut);
+            boolean songChanged = !Objects.equals(mplayer.filename, config.filename)
+                || mplayer.stream != config.stream
+                || (mplayer.stream && groupChanged)
+                || !Objects.equals(mplayer.songKey, config.songKey)
+                // Left out before.
+                || (!leftOut && !mplayer.isReady() && mplayer.load == null);
+            if (!songChanged && !groupChanged && gson.toJsonTree(mplayer).equals(gson.toJsonTree(config))) continue;
+            getLogger().info("Updating player: " + mplayer.name);
+            String oldWorld = mplayer.world;
+            int oldCx = mplayer.cx;
+            int oldCz = mplayer.cz;
+            if (groupChanged) leaveGroup(mplayer);
+            mplayer.updateFrom(config);
+            if (groupChanged && !leftOut) joinGroup(mplayer, leader);
+            players.relocate(mplayer, oldWorld, oldCx, oldCz);
+            if (leftOut) {
+                if (mplayer.load != null) {
+                    loader.cancel(mplayer.load);
+                    mplayer.load = null;
+                }
+                mplayer.generation += 1;
+                releaseSong(mplayer);
+                players.deactivate(mplayer);
+            } else if (songChanged) {
+                releaseSong(mplayer);
+                players.deactivate(mplayer);
+                startPlayer(mplayer);
+            } else if (mplayer.isReady()) {
+                // The location may have moved into a loaded chunk.
+                players.activate(mplayer);
             }
+            changed += 1;
+        }
+        getLogger().info("Midi players reloaded: " + added + " added, " + changed + " changed, " + removed + " removed.");
+    }
+
+    /**
+     * Have the loader fetch the song, or open it for streaming.  The
+     * player starts once the load is drained, see loaded.  A load
+     * still in flight for this player is cancelled.
+     */
+    void startPlayer(MidiPlayer mplayer) {
+        final int generation = ++mplayer.generation;
+        library.played(mplayer.filename);
+        if (mplayer.load != null) loader.cancel(mplayer.load);
+        mplayer.load = loader.submit(mplayer, generation, songFileOf(mplayer), mplayer.stream && mplayer.midiGroup == null);
+    }
+
+    /**
+     * Hand a finished load to its player.  A player which was stopped
+     * or started anew in the meantime gives the song, or stream,
+     * right back.
+     */
+    void loaded(MidiLoader.Load load) {
+        final MidiPlayer mplayer = load.player;
+        if (mplayer.load == load) mplayer.load = null;
+        if (mplayer.generation != load.generation || mplayer.stopped) {
+            loader.release(load);
+            return;
+        }
+        if (load.failed()) {
+            stopPlayer(mplayer);
+            return;
+        }
+        if (load.stream) {
+            mplayer.midiStream = load.midiStream;
+        } else {
+            mplayer.midi = load.midi;
+            if (lookaheadWorker != null && mplayer.lookahead == null) {
+                mplayer.lookahead = new MidiLookahead(lookaheadWorker, lookaheadTicks);
+            }
+        }
+        if (mplayer.midiGroup != null) mplayer.midiGroup.loaded(mplayer);
+        mplayer.setup();
+        mplayer.resume();
+        players.activate(mplayer);
+    }
+
+    /**
+     * Stop a player and forget it right away.
+     */
+    void stopPlayer(MidiPlayer mplayer) {
+        if (mplayer.load != null) {
+            loader.cancel(mplayer.load);
+            mplayer.load = null;
+        }
+        mplayer.stop();
+        players.remove(mplayer);
+        forgetPlayer(mplayer);
+    }
+
+    /**
+     * Let go of everything a stopped player holds.  A player file
+     * which stopped starts over the next time.
+     */
+    void forgetPlayer(MidiPlayer mplayer) {
+        if (checkpoints != null && mplayer.persistent && mplayer.midiGroup == null) checkpoints.forgetPlayer(mplayer.name);
+        releaseSong(mplayer);
+        leaveGroup(mplayer);
+    }
+
+    /**
+     * Put a player in its group, which is created with the settings
+     * of the leader if need be.
+     */
+    void joinGroup(MidiPlayer mplayer, MidiPlayer leader) {
+        if (mplayer.group == null) return;
+        MidiGroup group = groups.get(mplayer.group);
+        if (group == null) {
+            group = new MidiGroup(mplayer.group);
+            group.configure(leader);
+            group.resume = mplayer.checkpoint;
+            if (lookaheadWorker != null) group.cursor.lookahead = new MidiLookahead(lookaheadWorker, lookaheadTicks);
+            groups.put(group.name, group);
         }
+        group.members.add(mplayer);
+        mplayer.midiGroup = group;
+    }
+
+    static boolean sameGroupSettings(MidiPlayer a, MidiPlayer b) {
+        return Objects.equals(a.filename, b.filename) && a.speed == b.speed && a.loop == b.loop;
+    }
+
+    /**
+     * Take a player out of its group.  The last one to leave ends the
+     * group.
+     */
+    void leaveGroup(MidiPlayer mplayer) {
+        MidiGroup group = mplayer.midiGroup;
+        if (group == null) return;
+        mplayer.midiGroup = null;
+        group.members.remove(mplayer);
+        if (!group.members.isEmpty()) return;
+        group.cursor.stop();
+        group.cursor.midi = null;
+        group.song = null;
+        group.songKey = null;
+        groups.remove(group.name);
+        if (checkpoints != null) checkpoints.forgetGroup(group.name);
+    }
+
+    void releaseSong(MidiPlayer mplayer) {
+        mplayer.midiStream = null;
+        if (mplayer.midi == null) return;
+        songs.release(mplayer.midi);
+        mplayer.midi = null;
+    }
+
+    @Override
+    public void run() {
+        loader.drain(this::loaded);
+        scheduler.tick(getServer().getOnlinePlayers());
     }
 
     @Override
@@ -90,8 +462,9 @@ public final class MidiPlugin extends JavaPlugin implements Runnable, Listener {
         case "play": {
             String fn = "test";
             if (args.length >= 2) fn = args[1];
-            long speed = 20L;
-            if (args.length >= 3) speed = Long.parseLong(args[2]);
+            double speed = 1.0;
+            if (args.length >= 3) speed = Double.parseDouble(args[2]);
+            if (speed <= 0.0 || speed > MidiPlayer.MAX_SPEED) return false;
             float volume = 1.0f;
             if (args.length >= 4) volume = Float.parseFloat(args[3]);
             MidiPlayer mplayer = new MidiPlayer();
@@ -100,46 +473,105 @@ public final class MidiPlugin extends JavaPlugin implements Runnable, Listener {
             mplayer.volume = volume;
             mplayer.speed = speed;
             mplayer.name = fn;
-            mplayer.paused = true;
-            this.midiPlayers.add(mplayer);
-            final File mfile = new File(getDataFolder(), fn + ".mid");
-            getServer().getScheduler().runTaskAsynchronously(this, () -> {
-                    Midi midi = Midi.load(mfile);
-                    if (midi == null) {
-                        mplayer.stopped = true;
-                    } else {
-                        mplayer.midi = midi;
-                        mplayer.paused = false;
-                        mplayer.setup();
-                    }
-                });
+            mplayer.filename = fn;
+            players.add(mplayer);
+            startPlayer(mplayer);
             return true;
         }
         case "stop": {
             if (args.length != 2) return false;
             String fn = args[1];
             int count = 0;
-            for (MidiPlayer mplayer: this.midiPlayers) {
+            for (MidiPlayer mplayer: players.getAll()) {
                 if (!mplayer.stopped && fn.equals(mplayer.name)) {
-                    mplayer.stopped = true;
+                    stopPlayer(mplayer);
                     count += 1;
                 }
             }
             sender.sendMessage("Stoppped " + count + " midi players.");
             return true;
         }
+        case "seek": {
+            if (args.length != 3) return false;
+            double seconds = Double.parseDouble(args[2]);
+            int count = 0;
+            for (MidiPlayer mplayer: players.getAll()) {
+                if (!mplayer.stopped && args[1].equals(mplayer.name)) {
+                    mplayer.seek(seconds * 20.0);
+                    count += 1;
+                }
+            }
+            sender.sendMessage("Moved " + count + " midi players to " + seconds + "s.");
+            return true;
+        }
+        case "speed": {
+            if (args.length != 3) return false;
+            double speed = Double.parseDouble(args[2]);
+            if (speed <= 0.0 || speed > MidiPlayer.MAX_SPEED) return false;
+            int count = 0;
+            for (MidiPlayer mplayer: players.getAll()) {
+                if (!mplayer.stopped && args[1].equals(mplayer.name)) {
+                    mplayer.setSpeed(speed);
+                    count += 1;
+                }
+            }
+            sender.sendMessage("Set speed of " + count + " midi players to " + speed + ".");
+            return true;
+        }
         case "reload": {
-            loadPlayers();
-            if (sender instanceof Player) sender.sendMessage("Midi players reloaded. See console.");
+            reloadPlayers();
+            if (sender instanceof Player) sender.sendMessage("Reloading midi players. See console.");
             return true;
         }
         case "list": {
-            sender.sendMessage(this.midiPlayers.size() + " MIDI players");
-            for (MidiPlayer mplayer: this.midiPlayers) {
-                sender.sendMessage("" + mplayer.name + ") " + mplayer.world + ":" + (int)Math.floor(mplayer.x) + "," + (int)Math.floor(mplayer.y) + "," + (int)Math.floor(mplayer.z) + (mplayer.paused ? " PAUSED" : "") + " speed=" + mplayer.speed + " volume=" + String.format("%.02f", mplayer.volume));
+            if (args.length >= 2 && args[1].equals("songs")) return listSongs(sender, args);
+            sender.sendMessage(players.size() + " MIDI players, " + players.activeSize() + " active, " + groups.size() + " groups");
+            sender.sendMessage("Last tick: " + listeners.getLastEmitted() + " sounds emitted, " + listeners.getLastCulled() + " culled");
+            sender.sendMessage("Scheduler: budget " + scheduler.getBudget() / 1000L + "us, " + scheduler.getOverruns() + " overruns, " + scheduler.getDeferred() + " players deferred, " + scheduler.getLastDeferred() + " last tick, " + scheduler.getLastDue() + " due, " + players.getWheel().size() + " asleep");
+            sender.sendMessage(songs.size() + " songs cached, hits=" + songs.getHits() + " misses=" + songs.getMisses() + " evictions=" + songs.getEvictions());
+            for (MidiPlayer mplayer: players.getAll()) {
+                sender.sendMessage("" + mplayer.name + ") " + mplayer.world + ":" + (int)Math.floor(mplayer.x) + "," + (int)Math.floor(mplayer.y) + "," + (int)Math.floor(mplayer.z) + (mplayer.paused ? " PAUSED" : "") + (mplayer.group != null ? " group=" + mplayer.group : "") + " speed=" + String.format("%.02f", mplayer.speed) + " volume=" + String.format("%.02f", mplayer.volume) + " time=" + (long) mplayer.getPosition() / 20L + "s backlog=" + mplayer.backlog);
             }
             return true;
         }
+        case "stats": {
+            sender.sendMessage(String.format("Songs: %d cached, %d KiB, %d compiled in %.1fms avg, %.1fms max",
+                                             stats.getCachedSongs(), stats.getCachedSongBytes() / 1024L,
+                                             stats.getCompiles(), stats.getCompileMillisMean(), stats.getCompileMillisMax()));
+            sender.sendMessage(String.format("Loads: %d in %.1fms avg, %.1fms p99, %.1fms max, %d pending",
+                                             stats.getLoads(), stats.getLoadMillisMean(), stats.getLoadMillis99(),
+                                             stats.getLoadMillisMax(), stats.getPendingLoads()));
+            sender.sendMessage(String.format("Tick: %.1fus avg, %.1fus p99, %.1fus max; per player %.0fns avg, %.0fns p99",
+                                             stats.getTickMicrosMean(), stats.getTickMicros99(), stats.getTickMicrosMax(),
+                                             stats.getPlayerTickNanosMean(), stats.getPlayerTickNanos99()));
+            sender.sendMessage(String.format("Sounds: %d emitted, %d culled, %.0f/s",
+                                             stats.getEmitted(), stats.getCulled(), stats.getSoundsPerSecond()));
+            sender.sendMessage(String.format("Players: %d, %d active, %d pauses, %d resumes",
+                                             stats.getPlayers(), stats.getActivePlayers(), stats.getPauses(), stats.getResumes()));
+            return true;
+        }
+        case "precompile": {
+            if (args.length > 2 || (args.length == 2 && !args[1].equals("force"))) return false;
+            if (precompile != null && !precompile.isFinished()) {
+                sender.sendMessage(precompile.getProgress());
+                return true;
+            }
+            boolean force = args.length == 2;
+            precompile = new MidiPrecompile(getDataFolder(), songs.getMaxVoices(), force, stats);
+            precompile.start();
+            sender.sendMessage("Precompiling all songs" + (force ? ", even those up to date" : "") + ".");
+            final MidiPrecompile job = precompile;
+            precompileTask = getServer().getScheduler().runTaskTimer(this, () -> {
+                    if (!job.isFinished()) {
+                        sender.sendMessage(job.getProgress());
+                        return;
+                    }
+                    sender.sendMessage(job.getSummary());
+                    if (sender instanceof Player) getLogger().info(job.getSummary());
+                    precompileTask.cancel();
+                }, 40L, 40L);
+            return true;
+        }
         case "create": {
             MidiPlayer mplayer = new MidiPlayer();
             Player player = (Player)sender;
@@ -163,16 +595,74 @@ public final class MidiPlugin extends JavaPlugin implements Runnable, Listener {
         }
     }
 
+    /**
+     * List the songs of the library which start with the prefix, if
+     * any, and pass all filters.
+     */
+    private boolean listSongs(CommandSender sender, String[] args) {
+        String prefix = "";
+        Predicate<MidiLibrary.Song> filter = song -> true;
+        for (int i = 2; i < args.length; i += 1) {
+            if (args[i].indexOf('<') >= 0 || args[i].indexOf('>') >= 0 || args[i].indexOf('=') >= 0) {
+                try {
+                    filter = filter.and(MidiLibrary.filterOf(args[i]));
+                } catch (IllegalArgumentException iae) {
+                    sender.sendMessage(iae.getMessage());
+                    return true;
+                }
+            } else {
+                prefix = args[i];
+            }
+        }
+        List<MidiLibrary.Song> matches = new ArrayList<>();
+        for (MidiLibrary.Song song: library.find(prefix)) {
+            if (filter.test(song)) matches.add(song);
+        }
+        sender.sendMessage(matches.size() + " of " + library.size() + " songs");
+        for (int i = 0; i < matches.size() && i < 20; i += 1) {
+            MidiLibrary.Song song = matches.get(i);
+            long seconds = song.getDuration() / 20L;
+            sender.sendMessage(song.getName() + ") " + String.format("%d:%02d", seconds / 60L, seconds % 60L) + " notes=" + song.getNotes() + " tracks=" + song.getTracks() + " channels=" + song.getChannels() + " programs=" + Arrays.toString(song.getPrograms()) + " compiled=" + song.getBytes() / 1024L + "KiB plays=" + song.getPlays());
+        }
+        if (matches.size() > 20) sender.sendMessage("... and " + (matches.size() - 20) + " more");
+        return true;
+    }
+
+    @Override
+    public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
+        if (args.length == 1) {
+            List<String> result = new ArrayList<>();
+            for (String cmd: Arrays.asList("play", "stop", "seek", "speed", "list", "stats", "reload", "precompile", "create")) {
+                if (cmd.startsWith(args[0])) result.add(cmd);
+            }
+            return result;
+        }
+        if (args.length == 2 && args[0].equals("play")) return library.complete(args[1]);
+        if (args.length == 2 && args[0].equals("precompile")) {
+            return "force".startsWith(args[1]) ? Arrays.asList("force") : Collections.<String>emptyList();
+        }
+        if (args.length == 2 && args[0].equals("list")) {
+            return "songs".startsWith(args[1]) ? Arrays.asList("songs") : Collections.<String>emptyList();
+        }
+        if (args.length >= 3 && args[0].equals("list") && args[1].equals("songs")) return library.complete(args[args.length - 1]);
+        return Collections.<String>emptyList();
+    }
+
     @EventHandler
     public void onChunkLoad(ChunkLoadEvent event) {
         Chunk chunk = event.getChunk();
-        String world = chunk.getWorld().getName();
-        int x = chunk.getX();
-        int z = chunk.getZ();
-        for (MidiPlayer mplayer: midiPlayers) {
-            if (mplayer.paused && world.equals(mplayer.world) && x == mplayer.cx && z == mplayer.cz) {
-                mplayer.paused = false;
-            }
-        }
+        players.chunkLoaded(chunk.getWorld().getName(), chunk.getX(), chunk.getZ());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        Chunk chunk = event.getChunk();
+        players.chunkUnloaded(chunk.getWorld().getName(), chunk.getX(), chunk.getZ());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        players.worldUnloaded(event.getWorld().getName());
+        listeners.worldUnloaded(event.getWorld());
     }
 }
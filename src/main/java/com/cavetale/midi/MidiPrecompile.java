@@ -0,0 +1,112 @@
+package com.cavetale.midi;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compile every song in a folder ahead of time, several at a time on
+ * the common fork join pool, so no player ever waits for a compile.
+ * Songs whose compiled file is up to date are skipped, unless forced.
+ * The counters may be read from any thread while the job runs.
+ */
+final class MidiPrecompile {
+    private final File folder;
+    private final int maxVoices;
+    private final boolean force;
+    private final MidiStats stats;
+    private volatile int total;
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger compiled = new AtomicInteger();
+    private final AtomicInteger upToDate = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    // Source bytes and blips of the songs compiled.
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong blips = new AtomicLong();
+    private long startTime;
+    private volatile long endTime;
+    private volatile boolean finished;
+    private volatile boolean cancelled;
+
+    /**
+     * @param force compile songs even if they are up to date
+     * @param stats where to record the compile times, or null
+     */
+    MidiPrecompile(final File folder, final int maxVoices, final boolean force, final MidiStats stats) {
+        this.folder = folder;
+        this.maxVoices = maxVoices;
+        this.force = force;
+        this.stats = stats;
+    }
+
+    /**
+     * Start compiling in the background.
+     */
+    void start() {
+        startTime = System.nanoTime();
+        ForkJoinPool.commonPool().execute(() -> {
+                try {
+                    File[] files = folder.listFiles((dir, name) -> name.endsWith(".mid"));
+                    if (files == null) return;
+                    total = files.length;
+                    Arrays.stream(files).parallel().forEach(this::compile);
+                } finally {
+                    endTime = System.nanoTime();
+                    finished = true;
+                }
+            });
+    }
+
+    /**
+     * Skip all songs not yet started.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    private void compile(File file) {
+        if (cancelled) return;
+        try {
+            File binary = MidiBinary.binaryFileOf(file);
+            if (binary.isFile()) {
+                if (!force && MidiBinary.read(file, binary, maxVoices) != null) {
+                    upToDate.incrementAndGet();
+                    return;
+                }
+                binary.delete();
+            }
+            Midi midi = MidiBinary.load(file, maxVoices, stats);
+            if (midi == null) {
+                failed.incrementAndGet();
+                return;
+            }
+            compiled.incrementAndGet();
+            bytes.addAndGet(file.length());
+            blips.addAndGet(midi.size());
+        } finally {
+            done.incrementAndGet();
+        }
+    }
+
+    boolean isFinished() {
+        return finished;
+    }
+
+    String getProgress() {
+        int count = total;
+        int percent = count > 0 ? done.get() * 100 / count : 0;
+        return "Precompiling: " + done.get() + "/" + count + " songs (" + percent + "%), "
+            + compiled.get() + " compiled, " + upToDate.get() + " up to date, " + failed.get() + " failed";
+    }
+
+    String getSummary() {
+        double seconds = Math.max(1L, (finished ? endTime : System.nanoTime()) - startTime) / 1e9;
+        return String.format("Precompiled %d songs in %.2fs%s: %d compiled, %d up to date, %d failed;"
+                             + " %.1f songs/s, %.2f MiB/s, %.0f blips/s",
+                             done.get(), seconds, cancelled ? " (cancelled)" : "",
+                             compiled.get(), upToDate.get(), failed.get(),
+                             compiled.get() / seconds, bytes.get() / 1048576.0 / seconds, blips.get() / seconds);
+    }
+}
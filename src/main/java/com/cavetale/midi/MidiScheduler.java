@@ -0,0 +1,129 @@
+package com.cavetale.midi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import org.bukkit.entity.Player;
+
+/**
+ * Ticks the players which are due, once per server tick, within a
+ * time budget.  All others sleep in the wheel until their next blip,
+ * so a tick costs in proportion to the players with something to
+ * play.  Once the budget is spent, the remaining due players are
+ * deferred to the next tick and go first then, so every player gets
+ * its turn.  What a deferred player does with the ticks it missed is
+ * up to its backlog policy.
+ */
+final class MidiScheduler {
+    private final MidiIndex players;
+    private final MidiWheel wheel;
+    // Due players, the deferred ones first.
+    private final List<MidiPlayer> queue = new ArrayList<>();
+    private final MidiListeners listeners;
+    private final Consumer<MidiPlayer> release;
+    private final MidiStats stats;
+    private final long budget;
+    private long overruns;
+    private long deferred;
+    private int lastDeferred;
+    private int lastDue;
+
+    /**
+     * @param release called with each player which stopped
+     * @param stats where to record tick times and sounds
+     * @param budget the nanoseconds to spend per tick, or 0 for no
+     *   limit.  At least one player is ticked either way.
+     */
+    MidiScheduler(final MidiIndex players, final MidiListeners listeners, final Consumer<MidiPlayer> release, final MidiStats stats, final long budget) {
+        this.players = players;
+        this.wheel = players.getWheel();
+        this.listeners = listeners;
+        this.release = release;
+        this.stats = stats;
+        this.budget = budget;
+    }
+
+    void tick(Collection<? extends Player> online) {
+        final long start = System.nanoTime();
+        listeners.update(online);
+        stats.ticked(listeners.getLastEmitted(), listeners.getLastCulled());
+        final long tick = listeners.getTick();
+        final int from = queue.size();
+        wheel.poll(tick, queue);
+        final int count = queue.size();
+        for (int i = from; i < count; i += 1) queue.get(i).queued = true;
+        long now = System.nanoTime();
+        int served = 0;
+        int late = 0;
+        int kept = 0;
+        for (int i = 0; i < count; i += 1) {
+            MidiPlayer mplayer = queue.get(i);
+            if (mplayer.stopped || mplayer.paused) {
+                // Already dealt with by the index.
+                mplayer.queued = false;
+                continue;
+            }
+            if (late > 0 || (served > 0 && budget > 0L && now - start > budget)) {
+                mplayer.deferred += 1;
+                late += 1;
+                queue.set(kept++, mplayer);
+                continue;
+            }
+            mplayer.queued = false;
+            mplayer.tick(listeners);
+            long then = now;
+            now = System.nanoTime();
+            stats.playerTickNanos.record(now - then);
+            if (mplayer.stopped) {
+                players.remove(mplayer);
+                release.accept(mplayer);
+            } else if (mplayer.paused) {
+                players.deactivate(mplayer);
+            } else {
+                mplayer.clock = tick + 1L;
+                wheel.schedule(mplayer, mplayer.clock + mplayer.idleSteps());
+                served += 1;
+            }
+        }
+        queue.subList(kept, count).clear();
+        lastDue = count;
+        lastDeferred = late;
+        if (late > 0) {
+            overruns += 1L;
+            deferred += late;
+        }
+        stats.players = players.size();
+        stats.activePlayers = players.activeSize();
+        stats.tickNanos.record(System.nanoTime() - start);
+    }
+
+    long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Ticks which ran out of time.
+     */
+    long getOverruns() {
+        return overruns;
+    }
+
+    /**
+     * Players deferred, summed over all ticks.
+     */
+    long getDeferred() {
+        return deferred;
+    }
+
+    int getLastDeferred() {
+        return lastDeferred;
+    }
+
+    /**
+     * Players ticked on the last tick, or due but deferred.
+     */
+    int getLastDue() {
+        return lastDue;
+    }
+}
@@ -0,0 +1,199 @@
+package com.cavetale.midi;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of what the plugin costs, cheap enough to
+ * leave on.  All of them may be updated and read from any thread
+ * without locking.  Registered as a JMX MBean by the plugin.
+ */
+final class MidiStats implements MidiStatsMBean {
+    static final String OBJECT_NAME = "com.cavetale.midi:type=Stats";
+    // Sounds per second are smoothed over about a second.
+    static final double RATE_WEIGHT = 0.05;
+    final Histogram compileNanos = new Histogram();
+    final Histogram loadNanos = new Histogram();
+    final Histogram tickNanos = new Histogram();
+    final Histogram playerTickNanos = new Histogram();
+    final LongAdder emitted = new LongAdder();
+    final LongAdder culled = new LongAdder();
+    final LongAdder pauses = new LongAdder();
+    final LongAdder resumes = new LongAdder();
+    final AtomicLong cachedSongs = new AtomicLong();
+    final AtomicLong cachedSongBytes = new AtomicLong();
+    final AtomicInteger pendingLoads = new AtomicInteger();
+    volatile int players;
+    volatile int activePlayers;
+    private volatile double soundsPerSecond;
+
+    /**
+     * Nanosecond values in buckets by power of two.
+     */
+    static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+        void record(long nanos) {
+            if (nanos < 0L) nanos = 0L;
+            buckets.incrementAndGet(nanos == 0L ? 0 : 63 - Long.numberOfLeadingZeros(nanos));
+            count.increment();
+            sum.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        double getMean() {
+            long n = count.sum();
+            return n == 0L ? 0.0 : (double) sum.sum() / n;
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        /**
+         * The upper bound of the bucket holding a percentile.
+         * @param fraction the percentile, between 0 and 1
+         */
+        long getPercentile(double fraction) {
+            long n = count.sum();
+            if (n == 0L) return 0L;
+            long rank = (long) Math.ceil(fraction * n);
+            long seen = 0L;
+            for (int i = 0; i < 64; i += 1) {
+                seen += buckets.get(i);
+                if (seen >= rank) return Math.min(getMax(), i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1L);
+            }
+            return getMax();
+        }
+    }
+
+    /**
+     * Record the sounds of the tick which just ended.  Only called by
+     * the main thread.
+     */
+    void ticked(int emittedSounds, int culledSounds) {
+        emitted.add(emittedSounds);
+        culled.add(culledSounds);
+        soundsPerSecond += (emittedSounds * 20.0 - soundsPerSecond) * RATE_WEIGHT;
+    }
+
+    @Override
+    public long getCompiles() {
+        return compileNanos.getCount();
+    }
+
+    @Override
+    public double getCompileMillisMean() {
+        return compileNanos.getMean() / 1e6;
+    }
+
+    @Override
+    public double getCompileMillisMax() {
+        return compileNanos.getMax() / 1e6;
+    }
+
+    @Override
+    public long getLoads() {
+        return loadNanos.getCount();
+    }
+
+    @Override
+    public double getLoadMillisMean() {
+        return loadNanos.getMean() / 1e6;
+    }
+
+    @Override
+    public double getLoadMillis99() {
+        return loadNanos.getPercentile(0.99) / 1e6;
+    }
+
+    @Override
+    public double getLoadMillisMax() {
+        return loadNanos.getMax() / 1e6;
+    }
+
+    @Override
+    public long getCachedSongs() {
+        return cachedSongs.get();
+    }
+
+    @Override
+    public long getCachedSongBytes() {
+        return cachedSongBytes.get();
+    }
+
+    @Override
+    public double getTickMicrosMean() {
+        return tickNanos.getMean() / 1e3;
+    }
+
+    @Override
+    public double getTickMicros99() {
+        return tickNanos.getPercentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getTickMicrosMax() {
+        return tickNanos.getMax() / 1e3;
+    }
+
+    @Override
+    public double getPlayerTickNanosMean() {
+        return playerTickNanos.getMean();
+    }
+
+    @Override
+    public double getPlayerTickNanos99() {
+        return (double) playerTickNanos.getPercentile(0.99);
+    }
+
+    @Override
+    public long getEmitted() {
+        return emitted.sum();
+    }
+
+    @Override
+    public long getCulled() {
+        return culled.sum();
+    }
+
+    @Override
+    public double getSoundsPerSecond() {
+        return soundsPerSecond;
+    }
+
+    @Override
+    public long getPauses() {
+        return pauses.sum();
+    }
+
+    @Override
+    public long getResumes() {
+        return resumes.sum();
+    }
+
+    @Override
+    public int getPendingLoads() {
+        return pendingLoads.get();
+    }
+
+    @Override
+    public int getPlayers() {
+        return players;
+    }
+
+    @Override
+    public int getActivePlayers() {
+        return activePlayers;
+    }
+}
@@ -0,0 +1,53 @@
+package com.cavetale.midi;
+
+/**
+ * What the plugin costs, for JMX.  Times are in milliseconds for
+ * songs, microseconds for server ticks, and nanoseconds for single
+ * players.  Percentiles are rounded up to the next power of two
+ * nanoseconds.
+ */
+public interface MidiStatsMBean {
+    long getCompiles();
+
+    double getCompileMillisMean();
+
+    double getCompileMillisMax();
+
+    long getLoads();
+
+    double getLoadMillisMean();
+
+    double getLoadMillis99();
+
+    double getLoadMillisMax();
+
+    long getCachedSongs();
+
+    long getCachedSongBytes();
+
+    double getTickMicrosMean();
+
+    double getTickMicros99();
+
+    double getTickMicrosMax();
+
+    double getPlayerTickNanosMean();
+
+    double getPlayerTickNanos99();
+
+    long getEmitted();
+
+    long getCulled();
+
+    double getSoundsPerSecond();
+
+    long getPauses();
+
+    long getResumes();
+
+    int getPendingLoads();
+
+    int getPlayers();
+
+    int getActivePlayers();
+}
@@ -0,0 +1,195 @@
+package com.cavetale.midi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import org.bukkit.Sound;
+
+/**
+ * A song which is compiled while it plays.  The tracks of a memory
+ * mapped file are merged lazily, and only a small window of upcoming
+ * blips is kept on the heap, so memory use does not grow with the
+ * length of the song.  Ticks are server ticks, like those of a
+ * compiled song, and blips are coalesced the same way.  Each player
+ * owns its own stream.
+ */
+final class MidiStream {
+    static final int WINDOW = 1024;
+    private final MidiDecoder.Cursor[] cursors;
+    private final MidiTempo tempo;
+    // Tracks with a pending note, as a binary heap ordered by tick,
+    // then track.
+    private final int[] heap;
+    private int heapSize;
+    // Upcoming blips, as a ring buffer.  It is filled up to the
+    // window, then the tick in progress is added in one go, which has
+    // no more blips than there are distinct sounds and pitches.
+    private final long[] ticks = new long[WINDOW * 2];
+    private final Sound[] sounds = new Sound[WINDOW * 2];
+    private final float[] pitches = new float[WINDOW * 2];
+    private final MidiVoices voices;
+    private long voicesTick;
+    private int head;
+    private int count;
+    // Blips polled since the last rewind.
+    private long offset;
+
+    /**
+     * @param maxVoices the most blips per tick, or 0 for no limit
+     */
+    MidiStream(final ByteBuffer buffer, final int maxVoices) throws IOException {
+        this.voices = new MidiVoices(maxVoices);
+        MidiDecoder decoder = new MidiDecoder(buffer);
+        int trackCount = decoder.getTrackCount();
+        this.cursors = new MidiDecoder.Cursor[trackCount];
+        this.heap = new int[trackCount];
+        for (int track = 0; track < trackCount; track += 1) {
+            cursors[track] = decoder.cursor(track);
+        }
+        this.tempo = MidiTempo.of(decoder);
+        rewind();
+    }
+
+    static MidiStream open(File file, int maxVoices) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new MidiStream(channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size()), maxVoices);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Start over from the beginning of the song.
+     */
+    void rewind() throws IOException {
+        head = 0;
+        count = 0;
+        offset = 0L;
+        heapSize = 0;
+        voices.clear();
+        voices.resetCounts();
+        voicesTick = -1L;
+        for (int track = 0; track < cursors.length; track += 1) {
+            MidiDecoder.Cursor cursor = cursors[track];
+            cursor.rewind();
+            if (cursor.nextNote()) {
+                heap[heapSize] = track;
+                siftUp(heapSize++);
+            }
+        }
+        fill();
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Blips merged into another one since the last rewind.
+     */
+    int getDroppedDuplicates() {
+        return voices.getDuplicates();
+    }
+
+    /**
+     * Blips dropped for the voice limit since the last rewind.
+     */
+    int getDroppedVoices() {
+        return voices.getExcess();
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    long peekTick() {
+        return ticks[head];
+    }
+
+    Sound peekSound() {
+        return sounds[head];
+    }
+
+    float peekPitch() {
+        return pitches[head];
+    }
+
+    /**
+     * Drop the first blip.  The window is topped up once it runs
+     * half empty.
+     */
+    void poll() throws IOException {
+        sounds[head] = null;
+        head = (head + 1) % ticks.length;
+        count -= 1;
+        offset += 1L;
+        if (count < WINDOW / 2) fill();
+    }
+
+    private void fill() throws IOException {
+        while (count < WINDOW && heapSize > 0) {
+            int track = heap[0];
+            MidiDecoder.Cursor cursor = cursors[track];
+            float pitch = Midi.KEY_PITCHES[cursor.key];
+            if (pitch != 0f) {
+                long tick = tempo.serverTickOf(cursor.tick);
+                if (tick != voicesTick) {
+                    flushVoices();
+                    voicesTick = tick;
+                }
+                voices.offer(Midi.PROGRAM_SOUNDS[cursor.program][cursor.key], pitch, cursor.velocity);
+            }
+            if (!cursor.nextNote()) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(0);
+        }
+        if (heapSize == 0) flushVoices();
+    }
+
+    private void flushVoices() {
+        for (int i = 0; i < voices.size(); i += 1) {
+            int tail = (head + count) % ticks.length;
+            ticks[tail] = voicesTick;
+            sounds[tail] = voices.sounds[i];
+            pitches[tail] = voices.pitches[i];
+            count += 1;
+        }
+        voices.clear();
+    }
+
+    private boolean before(int a, int b) {
+        long ta = cursors[a].tick;
+        long tb = cursors[b].tick;
+        return ta < tb || (ta == tb && a < b);
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (!before(heap[index], heap[parent])) return;
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int left = index * 2 + 1;
+            if (left >= heapSize) return;
+            int child = left + 1 < heapSize && before(heap[left + 1], heap[left]) ? left + 1 : left;
+            if (!before(heap[child], heap[index])) return;
+            swap(index, child);
+            index = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int tmp = heap[a];
+        heap[a] = heap[b];
+        heap[b] = tmp;
+    }
+}
@@ -0,0 +1,93 @@
+package com.cavetale.midi;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The tempo map of a song.  It turns MIDI ticks into server ticks of
+ * 50 milliseconds, using the division of the file and all its tempo
+ * changes.
+ */
+final class MidiTempo {
+    static final double SERVER_TICK_MICROS = 50000.0;
+    static final int DEFAULT_TEMPO = 500000; // 120 BPM
+    // Each segment starts at a MIDI tick, with the time in
+    // microseconds at that tick, and lasts until the next one.
+    private final long[] ticks;
+    private final double[] micros;
+    private final double[] microsPerTick;
+
+    private MidiTempo(final long[] ticks, final double[] micros, final double[] microsPerTick) {
+        this.ticks = ticks;
+        this.micros = micros;
+        this.microsPerTick = microsPerTick;
+    }
+
+    /**
+     * Gather the tempo changes of all tracks.
+     */
+    static MidiTempo of(MidiDecoder decoder) throws IOException {
+        int division = decoder.getDivision();
+        if ((division & 0x8000) != 0) {
+            // SMPTE: negative frames per second in the high byte,
+            // ticks per frame in the low byte.  Tempo changes do not
+            // apply.
+            int fps = -(byte) (division >> 8);
+            double frames = fps == 29 ? 29.97 : (double) fps;
+            int ticksPerFrame = division & 0xFF;
+            return new MidiTempo(new long[] {0L}, new double[] {0.0}, new double[] {1000000.0 / (frames * ticksPerFrame)});
+        }
+        int ppq = Math.max(1, division);
+        long[] changeTicks = new long[8];
+        int[] changeTempos = new int[8];
+        int count = 0;
+        for (int track = 0; track < decoder.getTrackCount(); track += 1) {
+            MidiDecoder.Cursor cursor = decoder.cursor(track);
+            while (cursor.nextTempo()) {
+                if (count == changeTicks.length) {
+                    changeTicks = Arrays.copyOf(changeTicks, count * 2);
+                    changeTempos = Arrays.copyOf(changeTempos, count * 2);
+                }
+                // Insertion sort by tick.  Of several changes on one
+                // tick, the last one in track order wins.
+                int i = count++;
+                while (i > 0 && changeTicks[i - 1] > cursor.tick) {
+                    changeTicks[i] = changeTicks[i - 1];
+                    changeTempos[i] = changeTempos[i - 1];
+                    i -= 1;
+                }
+                changeTicks[i] = cursor.tick;
+                changeTempos[i] = cursor.tempo;
+            }
+        }
+        long[] ticks = new long[count + 1];
+        double[] micros = new double[count + 1];
+        double[] microsPerTick = new double[count + 1];
+        int segments = 1;
+        microsPerTick[0] = (double) DEFAULT_TEMPO / ppq;
+        for (int i = 0; i < count; i += 1) {
+            long tick = changeTicks[i];
+            int last = segments - 1;
+            if (tick != ticks[last]) {
+                ticks[segments] = tick;
+                micros[segments] = micros[last] + (tick - ticks[last]) * microsPerTick[last];
+                last = segments++;
+            }
+            microsPerTick[last] = (double) changeTempos[i] / ppq;
+        }
+        return new MidiTempo(Arrays.copyOf(ticks, segments), Arrays.copyOf(micros, segments), Arrays.copyOf(microsPerTick, segments));
+    }
+
+    double microsOf(long tick) {
+        int index = Arrays.binarySearch(ticks, tick);
+        if (index < 0) index = -index - 2;
+        return micros[index] + (tick - ticks[index]) * microsPerTick[index];
+    }
+
+    /**
+     * Get the server tick, at the original tempo, of a MIDI tick.
+     */
+    long serverTickOf(long tick) {
+        return Math.round(microsOf(tick) / SERVER_TICK_MICROS);
+    }
+}
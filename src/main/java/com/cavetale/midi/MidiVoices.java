@@ -0,0 +1,94 @@
+package com.cavetale.midi;
+
+import java.util.Arrays;
+import org.bukkit.Sound;
+
+/**
+ * The blips of one server tick, thinned out.  A blip with the same
+ * sound and pitch as one already there is a duplicate and merely
+ * raises its velocity.  Beyond the voice limit, the quietest blip is
+ * dropped, or the latest of several equally quiet ones.  Notes of
+ * velocity 0 are note offs and are ignored.
+ *
+ * Blips are offered one by one, in the order of the song, so compiled
+ * songs and streams come out the same.
+ */
+final class MidiVoices {
+    private final int maxVoices;
+    Sound[] sounds = new Sound[16];
+    float[] pitches = new float[16];
+    byte[] velocities = new byte[16];
+    private int size;
+    private int duplicates;
+    private int excess;
+
+    /**
+     * @param maxVoices the most blips per tick, or 0 for no limit
+     */
+    MidiVoices(final int maxVoices) {
+        this.maxVoices = Math.max(0, maxVoices);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Start the next tick.
+     */
+    void clear() {
+        Arrays.fill(sounds, 0, size, null);
+        size = 0;
+    }
+
+    void offer(Sound sound, float pitch, int velocity) {
+        if (velocity <= 0) return;
+        for (int i = 0; i < size; i += 1) {
+            if (sounds[i] == sound && pitches[i] == pitch) {
+                if (velocity > velocities[i]) velocities[i] = (byte) velocity;
+                duplicates += 1;
+                return;
+            }
+        }
+        if (maxVoices > 0 && size == maxVoices) {
+            excess += 1;
+            int weakest = 0;
+            for (int i = 1; i < size; i += 1) {
+                if (velocities[i] <= velocities[weakest]) weakest = i;
+            }
+            if (velocity <= velocities[weakest]) return;
+            size -= 1;
+            System.arraycopy(sounds, weakest + 1, sounds, weakest, size - weakest);
+            System.arraycopy(pitches, weakest + 1, pitches, weakest, size - weakest);
+            System.arraycopy(velocities, weakest + 1, velocities, weakest, size - weakest);
+        }
+        if (size == sounds.length) {
+            sounds = Arrays.copyOf(sounds, size * 2);
+            pitches = Arrays.copyOf(pitches, size * 2);
+            velocities = Arrays.copyOf(velocities, size * 2);
+        }
+        sounds[size] = sound;
+        pitches[size] = pitch;
+        velocities[size] = (byte) velocity;
+        size += 1;
+    }
+
+    /**
+     * Blips merged into another one.
+     */
+    int getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Blips dropped for the voice limit.
+     */
+    int getExcess() {
+        return excess;
+    }
+
+    void resetCounts() {
+        duplicates = 0;
+        excess = 0;
+    }
+}
@@ -0,0 +1,83 @@
+package com.cavetale.midi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watch the plugin folder for changed songs and player files.  Once
+ * nothing has changed for a moment, the players are reloaded.
+ */
+final class MidiWatcher implements Runnable {
+    private final MidiPlugin plugin;
+    private final long delay;
+    private WatchService service;
+    private Thread thread;
+    private volatile boolean running;
+
+    MidiWatcher(final MidiPlugin plugin, final long delay) {
+        this.plugin = plugin;
+        this.delay = delay;
+    }
+
+    void start() throws IOException {
+        File dir = new File(plugin.getDataFolder(), "players");
+        dir.mkdirs();
+        service = FileSystems.getDefault().newWatchService();
+        plugin.getDataFolder().toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        dir.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        running = true;
+        thread = new Thread(this, "Midi-Watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        try {
+            service.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                boolean relevant = drain(service.take());
+                // Wait for things to settle.
+                WatchKey key;
+                while ((key = service.poll(delay, TimeUnit.MILLISECONDS)) != null) {
+                    relevant |= drain(key);
+                }
+                if (relevant && running) plugin.getServer().getScheduler().runTask(plugin, plugin::reloadPlayers);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            return;
+        }
+    }
+
+    /**
+     * Find out if any song or player file changed.
+     */
+    private static boolean drain(WatchKey key) {
+        boolean result = false;
+        for (WatchEvent<?> event: key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                result = true;
+                continue;
+            }
+            String name = event.context().toString();
+            if (name.endsWith(".mid") || name.endsWith(".json")) result = true;
+        }
+        key.reset();
+        return result;
+    }
+}
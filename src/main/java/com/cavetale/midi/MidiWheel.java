@@ -0,0 +1,134 @@
+package com.cavetale.midi;
+
+import java.util.List;
+
+/**
+ * The active players, each filed under the server tick of its next
+ * step.  A player between two notes sleeps through the ticks in
+ * between, which cost it nothing, and catches up on waking.
+ *
+ * This is a hashed timing wheel: one slot per server tick, wrapping
+ * around, each with a doubly linked list of the players due then.
+ * Players due more than one turn ahead share a slot with nearer
+ * ones and are passed over until their tick comes.  Filing, moving
+ * and removing a player take constant time, and so does a tick with
+ * nobody due.
+ */
+final class MidiWheel {
+    static final int SLOTS = 256;
+    private final MidiPlayer[] slots = new MidiPlayer[SLOTS];
+    private long last;
+    private int size;
+
+    /**
+     * The server tick last polled.
+     */
+    long getLast() {
+        return last;
+    }
+
+    /**
+     * The server tick of the next poll.
+     */
+    long next() {
+        return last + 1L;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(MidiPlayer mplayer) {
+        return mplayer.wheelSlot >= 0;
+    }
+
+    /**
+     * File a player under a server tick, or the next one if that is
+     * already past.
+     */
+    void schedule(MidiPlayer mplayer, long tick) {
+        if (mplayer.wheelSlot >= 0) unlink(mplayer);
+        if (tick <= last) tick = last + 1L;
+        mplayer.wake = tick;
+        int slot = (int) tick & (SLOTS - 1);
+        MidiPlayer head = slots[slot];
+        mplayer.wheelSlot = slot;
+        mplayer.wheelPrev = null;
+        mplayer.wheelNext = head;
+        if (head != null) head.wheelPrev = mplayer;
+        slots[slot] = mplayer;
+        size += 1;
+    }
+
+    /**
+     * Take a player out.
+     * @return true if it was in
+     */
+    boolean cancel(MidiPlayer mplayer) {
+        if (mplayer.wheelSlot < 0) return false;
+        unlink(mplayer);
+        return true;
+    }
+
+    /**
+     * Wake a sleeping player for the next tick, after something
+     * changed what it plays when.  Players which are not in the wheel
+     * are due anyway, or not playing.
+     */
+    void wake(MidiPlayer mplayer) {
+        if (mplayer.wheelSlot < 0) return;
+        if (mplayer.stopped) {
+            unlink(mplayer);
+            return;
+        }
+        mplayer.catchUp(next());
+        schedule(mplayer, next());
+    }
+
+    /**
+     * Move to the next server tick, and take out the players due
+     * then.  Each one has caught up on the ticks it slept through.
+     * Call this once for every server tick, in order.
+     */
+    void poll(long tick, List<MidiPlayer> out) {
+        last = tick;
+        MidiPlayer mplayer = slots[(int) tick & (SLOTS - 1)];
+        while (mplayer != null) {
+            MidiPlayer next = mplayer.wheelNext;
+            if (mplayer.wake <= tick) {
+                unlink(mplayer);
+                mplayer.catchUp(tick);
+                out.add(mplayer);
+            }
+            mplayer = next;
+        }
+    }
+
+    void clear() {
+        for (int i = 0; i < SLOTS; i += 1) {
+            MidiPlayer mplayer = slots[i];
+            while (mplayer != null) {
+                MidiPlayer next = mplayer.wheelNext;
+                mplayer.wheelSlot = -1;
+                mplayer.wheelPrev = null;
+                mplayer.wheelNext = null;
+                mplayer = next;
+            }
+            slots[i] = null;
+        }
+        size = 0;
+    }
+
+    private void unlink(MidiPlayer mplayer) {
+        if (mplayer.wheelPrev != null) {
+            mplayer.wheelPrev.wheelNext = mplayer.wheelNext;
+        } else {
+            slots[mplayer.wheelSlot] = mplayer.wheelNext;
+        }
+        if (mplayer.wheelNext != null) mplayer.wheelNext.wheelPrev = mplayer.wheelPrev;
+        mplayer.wheelSlot = -1;
+        mplayer.wheelPrev = null;
+        mplayer.wheelNext = null;
+        size -= 1;
+    }
+}
@@ -0,0 +1,82 @@
+package com.cavetale.midi;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class MidiBinaryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws Exception {
+        byte[] bytes = MidiDecoderTest.generate(3L, 6, 2000);
+        File source = folder.newFile("song.mid");
+        Files.write(source.toPath(), bytes);
+        Midi expected = Midi.compile(ByteBuffer.wrap(bytes), 8);
+        File binary = MidiBinary.binaryFileOf(source);
+        MidiDecoderTest.assertSame(expected, MidiBinary.load(source, 8));
+        Assert.assertTrue(binary.isFile());
+        MidiDecoderTest.assertSame(expected, MidiBinary.read(source, binary, 8));
+        Assert.assertNull(MidiBinary.read(source, binary, 0));
+        // Touched, but not changed
+        source.setLastModified(source.lastModified() - 10000L);
+        MidiDecoderTest.assertSame(expected, MidiBinary.read(source, binary, 8));
+        // The new time was written back.
+        try (RandomAccessFile file = new RandomAccessFile(binary, "r")) {
+            file.seek(16L);
+            Assert.assertEquals(source.lastModified(), file.readLong());
+        }
+        // Corrupt
+        try (RandomAccessFile file = new RandomAccessFile(binary, "rw")) {
+            file.seek(MidiBinary.HEADER_SIZE + 5);
+            file.write(0x7F);
+        }
+        Assert.assertNull(MidiBinary.read(source, binary, 8));
+        MidiDecoderTest.assertSame(expected, MidiBinary.load(source, 8));
+        MidiDecoderTest.assertSame(expected, MidiBinary.read(source, binary, 8));
+        // Stale
+        bytes = MidiDecoderTest.generate(4L, 6, 2000);
+        Files.write(source.toPath(), bytes);
+        Assert.assertNull(MidiBinary.read(source, binary, 8));
+        MidiDecoderTest.assertSame(Midi.compile(ByteBuffer.wrap(bytes), 8), MidiBinary.load(source, 8));
+    }
+
+    @Test
+    public void concurrentWrites() throws Exception {
+        byte[] bytes = MidiDecoderTest.generate(5L, 4, 2000);
+        File source = folder.newFile("song.mid");
+        Files.write(source.toPath(), bytes);
+        final Midi expected = Midi.compile(ByteBuffer.wrap(bytes), 8);
+        final File binary = MidiBinary.binaryFileOf(source);
+        final long size = source.length();
+        final long modified = source.lastModified();
+        List<Thread> threads = new ArrayList<>();
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < 8; i += 1) {
+            Thread thread = new Thread(() -> {
+                    try {
+                        for (int j = 0; j < 20; j += 1) MidiBinary.write(binary, expected, size, modified, 0, 8);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        failures.incrementAndGet();
+                    }
+                });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread: threads) thread.join();
+        Assert.assertEquals(0, failures.get());
+        MidiDecoderTest.assertSame(expected, MidiBinary.read(source, binary, 8));
+        // No temporary files are left behind.
+        Assert.assertEquals(2, folder.getRoot().list().length);
+    }
+}
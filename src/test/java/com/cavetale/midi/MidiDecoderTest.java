@@ -0,0 +1,268 @@
+package com.cavetale.midi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+import org.bukkit.Sound;
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class MidiDecoderTest {
+    /**
+     * The compiler as it used to be, on top of javax.sound.midi, but
+     * with programs kept per track and channel.
+     */
+    static Midi reference(byte[] bytes) throws Exception {
+        Sequence sequence = MidiSystem.getSequence(new ByteArrayInputStream(bytes));
+        List<Midi> result = new ArrayList<>();
+        for (Track track: sequence.getTracks()) {
+            int[] programs = new int[16];
+            Midi.Builder builder = new Midi.Builder();
+            for (int i = 0; i < track.size(); i++) {
+                MidiEvent event = track.get(i);
+                MidiMessage message = event.getMessage();
+                if (!(message instanceof ShortMessage)) continue;
+                ShortMessage sm = (ShortMessage) message;
+                if (sm.getCommand() == ShortMessage.NOTE_ON) {
+                    int key = sm.getData1();
+                    int octave = (key / 12) - 1;
+                    String noteName = Midi.NOTE_NAMES[key % 12];
+                    Midi.Note note = null;
+                    for (Midi.Note n: Midi.Note.values()) {
+                        if (n.name.equals(noteName) && n.octave == (octave % 2) + 1) {
+                            note = n;
+                            break;
+                        }
+                    }
+                    if (note == null) continue;
+                    builder.add(event.getTick(), Midi.soundOf(programs[sm.getChannel()], octave), note.pitch, sm.getData2());
+                } else if (sm.getCommand() == ShortMessage.PROGRAM_CHANGE) {
+                    programs[sm.getChannel()] = sm.getData1();
+                }
+            }
+            result.add(builder.build());
+        }
+        return Midi.combine(result);
+    }
+
+    static byte[] generate(long seed, int tracks, int notes) throws Exception {
+        Random random = new Random(seed);
+        Sequence sequence = new Sequence(Sequence.PPQ, 96);
+        for (int t = 0; t < tracks; t += 1) {
+            Track track = sequence.createTrack();
+            int channel = t % 16;
+            long tick = 0;
+            byte[] tempo = {0x07, (byte) 0xA1, 0x20};
+            track.add(new MidiEvent(new MetaMessage(0x51, tempo, tempo.length), 0));
+            byte[] sysex = {(byte) 0xF0, 0x7E, 0x7F, 0x09, 0x01, (byte) 0xF7};
+            track.add(new MidiEvent(new SysexMessage(sysex, sysex.length), 0));
+            for (int i = 0; i < notes; i += 1) {
+                tick += random.nextInt(4) == 0 ? 0 : random.nextInt(48);
+                switch (random.nextInt(8)) {
+                case 0:
+                    track.add(new MidiEvent(new ShortMessage(ShortMessage.PROGRAM_CHANGE, channel, random.nextInt(128), 0), tick));
+                    break;
+                case 1:
+                    track.add(new MidiEvent(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, 7, random.nextInt(128)), tick));
+                    break;
+                case 2:
+                    track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, channel, random.nextInt(128), 0), tick));
+                    break;
+                default:
+                    track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, channel, random.nextInt(128), random.nextInt(128)), tick));
+                    break;
+                }
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MidiSystem.write(sequence, 1, out);
+        return out.toByteArray();
+    }
+
+    static void assertSame(Midi expected, Midi actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i += 1) {
+            Assert.assertEquals(expected.getTicks()[i], actual.getTicks()[i]);
+            Assert.assertEquals(expected.getSound(i), actual.getSound(i));
+            Assert.assertEquals(expected.getPitches()[i], actual.getPitches()[i], 0f);
+            Assert.assertEquals(expected.getVelocities()[i], actual.getVelocities()[i]);
+        }
+        Assert.assertEquals(expected.getDroppedDuplicates(), actual.getDroppedDuplicates());
+        Assert.assertEquals(expected.getDroppedVoices(), actual.getDroppedVoices());
+    }
+
+    @Test
+    public void corpus() throws Exception {
+        for (int seed = 0; seed < 20; seed += 1) {
+            byte[] bytes = generate(seed, 1 + seed % 8, 100 + seed * 50);
+            assertSame(reference(bytes), Midi.combine(Midi.parse(ByteBuffer.wrap(bytes))));
+        }
+    }
+
+    @Test
+    public void parallel() throws Exception {
+        byte[] bytes = generate(3L, 40, 2000);
+        Assert.assertTrue(bytes.length >= Midi.PARALLEL_BYTES);
+        assertSame(reference(bytes), Midi.combine(Midi.parse(ByteBuffer.wrap(bytes))));
+    }
+
+    @Test
+    public void programs() throws Exception {
+        Sequence sequence = new Sequence(Sequence.PPQ, 96);
+        Track first = sequence.createTrack();
+        first.add(new MidiEvent(new ShortMessage(ShortMessage.PROGRAM_CHANGE, 1, 9, 0), 0));
+        first.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 1));
+        first.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 1, 60, 100), 2));
+        Track second = sequence.createTrack();
+        second.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 1, 60, 100), 3));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MidiSystem.write(sequence, 1, out);
+        Midi midi = Midi.combine(Midi.parse(ByteBuffer.wrap(out.toByteArray())));
+        Assert.assertEquals(3, midi.size());
+        // Only channel 1 of the first track changed its program.
+        Assert.assertEquals(Midi.PROGRAM_SOUNDS[0][60], midi.getSound(0));
+        Assert.assertEquals(Midi.PROGRAM_SOUNDS[9][60], midi.getSound(1));
+        Assert.assertEquals(Midi.PROGRAM_SOUNDS[0][60], midi.getSound(2));
+        Assert.assertNotEquals(midi.getSound(0), midi.getSound(1));
+    }
+
+    @Test
+    public void stream() throws Exception {
+        byte[] bytes = generate(7L, 12, 1500);
+        Midi midi = Midi.compile(ByteBuffer.wrap(bytes), 4);
+        MidiStream stream = new MidiStream(ByteBuffer.wrap(bytes), 4);
+        for (int round = 0; round < 2; round += 1) {
+            for (int i = 0; i < midi.size(); i += 1) {
+                Assert.assertFalse(stream.isEmpty());
+                Assert.assertEquals(midi.getTicks()[i], stream.peekTick());
+                Assert.assertEquals(midi.getSound(i), stream.peekSound());
+                Assert.assertEquals(midi.getPitches()[i], stream.peekPitch(), 0f);
+                stream.poll();
+            }
+            Assert.assertTrue(stream.isEmpty());
+            Assert.assertEquals(midi.getDroppedDuplicates(), stream.getDroppedDuplicates());
+            Assert.assertEquals(midi.getDroppedVoices(), stream.getDroppedVoices());
+            stream.rewind();
+        }
+    }
+
+    @Test
+    public void tempo() throws Exception {
+        Sequence sequence = new Sequence(Sequence.PPQ, 96);
+        Track track = sequence.createTrack();
+        byte[] fast = {0x03, (byte) 0xD0, (byte) 0x90}; // 250000
+        track.add(new MidiEvent(new MetaMessage(0x51, fast, fast.length), 192));
+        for (int i = 0; i < 4; i += 1) {
+            track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), i * 96));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MidiSystem.write(sequence, 1, out);
+        Midi midi = Midi.compile(ByteBuffer.wrap(out.toByteArray()));
+        Assert.assertArrayEquals(new long[] {0L, 10L, 20L, 25L}, midi.getTicks());
+        Assert.assertEquals(2, midi.indexOf(15.5));
+        Assert.assertEquals(2, midi.indexOf(20.0));
+        Assert.assertEquals(4, midi.indexOf(26.0));
+    }
+
+    @Test
+    public void coalesce() throws Exception {
+        Sequence sequence = new Sequence(Sequence.PPQ, 96);
+        Track track = sequence.createTrack();
+        // The first two are the same note on two channels.
+        int[] keys = {60, 60, 62, 64, 65, 67};
+        int[] velocities = {50, 90, 40, 100, 30, 70};
+        for (int i = 0; i < keys.length; i += 1) {
+            track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, i, keys[i], velocities[i]), 0));
+        }
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 0), 96));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MidiSystem.write(sequence, 1, out);
+        byte[] bytes = out.toByteArray();
+        Midi all = Midi.compile(ByteBuffer.wrap(bytes));
+        Assert.assertEquals(5, all.size());
+        Assert.assertEquals(1, all.getDroppedDuplicates());
+        Assert.assertEquals(0, all.getDroppedVoices());
+        Assert.assertEquals(90, all.getVelocities()[0]);
+        Midi three = Midi.compile(ByteBuffer.wrap(bytes), 3);
+        Assert.assertArrayEquals(new byte[] {90, 100, 70}, three.getVelocities());
+        Assert.assertEquals(1, three.getDroppedDuplicates());
+        Assert.assertEquals(2, three.getDroppedVoices());
+    }
+
+    @Test
+    public void runningStatus() throws Exception {
+        byte[] bytes = {
+            'M', 'T', 'h', 'd', 0, 0, 0, 6, 0, 0, 0, 1, 0, 96,
+            'M', 'T', 'r', 'k', 0, 0, 0, 18,
+            0x00, (byte) 0xC0, 0x30,
+            0x00, (byte) 0x90, 0x3C, 0x40,
+            0x10, 0x3E, 0x40,
+            (byte) 0x81, 0x00, 0x40, 0x00,
+            0x00, (byte) 0xFF, 0x2F, 0x00,
+        };
+        Midi midi = Midi.combine(Midi.parse(ByteBuffer.wrap(bytes)));
+        assertSame(reference(bytes), midi);
+        Assert.assertEquals(3, midi.size());
+        Assert.assertEquals(144L, midi.getTicks()[2]);
+        Assert.assertEquals(Sound.BLOCK_NOTE_BLOCK_PLING, midi.getSound(0));
+    }
+
+    /**
+     * Running status right after meta and sysex events, which the JDK
+     * reader rejects, decodes like the same file with every status
+     * byte spelled out.
+     */
+    @Test
+    public void runningStatusAfterMeta() throws Exception {
+        byte[] header = {'M', 'T', 'h', 'd', 0, 0, 0, 6, 0, 0, 0, 1, 0, 96};
+        byte[] running = {
+            'M', 'T', 'r', 'k', 0, 0, 0, 31,
+            0x00, (byte) 0x90, 0x3C, 0x40,
+            // Text, then tempo, then a note in running status
+            0x20, (byte) 0xFF, 0x01, 0x02, 'h', 'i',
+            0x00, (byte) 0xFF, 0x51, 0x03, 0x07, (byte) 0xA1, 0x20,
+            0x20, 0x3E, 0x40,
+            // Sysex, then again
+            0x00, (byte) 0xF0, 0x01, (byte) 0xF7,
+            0x20, 0x40, 0x40,
+            0x00, (byte) 0xFF, 0x2F, 0x00,
+        };
+        byte[] explicit = {
+            'M', 'T', 'r', 'k', 0, 0, 0, 33,
+            0x00, (byte) 0x90, 0x3C, 0x40,
+            0x20, (byte) 0xFF, 0x01, 0x02, 'h', 'i',
+            0x00, (byte) 0xFF, 0x51, 0x03, 0x07, (byte) 0xA1, 0x20,
+            0x20, (byte) 0x90, 0x3E, 0x40,
+            0x00, (byte) 0xF0, 0x01, (byte) 0xF7,
+            0x20, (byte) 0x90, 0x40, 0x40,
+            0x00, (byte) 0xFF, 0x2F, 0x00,
+        };
+        Midi midi = Midi.combine(Midi.parse(ByteBuffer.wrap(concat(header, running))));
+        assertSame(reference(concat(header, explicit)), midi);
+        Assert.assertEquals(3, midi.size());
+    }
+
+    static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    @Test
+    public void large() throws Exception {
+        byte[] bytes = generate(1L, 16, 20000);
+        assertSame(reference(bytes), Midi.combine(Midi.parse(ByteBuffer.wrap(bytes))));
+    }
+}
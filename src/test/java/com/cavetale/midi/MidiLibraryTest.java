@@ -0,0 +1,79 @@
+package com.cavetale.midi;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.logging.Logger;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class MidiLibraryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void scan() throws Exception {
+        File dir = folder.getRoot();
+        byte[] bytes = MidiDecoderTest.generate(5L, 3, 500);
+        Files.write(new File(dir, "bach.mid").toPath(), bytes);
+        Files.write(new File(dir, "bartok.mid").toPath(), MidiDecoderTest.generate(6L, 17, 300));
+        Files.write(new File(dir, "chopin.mid").toPath(), MidiDecoderTest.generate(7L, 1, 100));
+        MidiLibrary library = new MidiLibrary(dir, 8, Logger.getAnonymousLogger());
+        Assert.assertTrue(library.scan());
+        Assert.assertEquals(3, library.size());
+        MidiLibrary.Song bach = library.get("bach");
+        Midi midi = Midi.compile(ByteBuffer.wrap(bytes), 8);
+        Assert.assertEquals(3, bach.getTracks());
+        Assert.assertEquals(3, bach.getChannels());
+        Assert.assertEquals(16, library.get("bartok").getChannels());
+        Assert.assertEquals(midi.getDuration(), bach.getDuration());
+        Assert.assertEquals(midi.size(), bach.getBlips());
+        Assert.assertTrue(bach.getNotes() >= bach.getBlips());
+        Assert.assertTrue(MidiBinary.binaryFileOf(new File(dir, "bach.mid")).isFile());
+        // Queries
+        Assert.assertEquals(Arrays.asList("bach", "bartok"), library.complete("ba"));
+        Assert.assertEquals(Arrays.asList("bach", "bartok", "chopin"), library.complete(""));
+        Assert.assertEquals(2, library.find("b").size());
+        Assert.assertTrue(MidiLibrary.filterOf("tracks>2").test(bach));
+        Assert.assertFalse(MidiLibrary.filterOf("tracks<3").test(bach));
+        Assert.assertTrue(MidiLibrary.filterOf("program=" + bach.getPrograms()[0]).test(bach));
+        try {
+            MidiLibrary.filterOf("colour=3");
+            Assert.fail();
+        } catch (IllegalArgumentException iae) { }
+        // Nothing changed
+        library.played("chopin");
+        Assert.assertFalse(library.scan());
+        Assert.assertSame(bach, library.get("bach"));
+        Assert.assertEquals("chopin", library.mostPlayed(2).get(0).getName());
+        Assert.assertEquals(1, library.mostPlayed(2).size());
+        // Saved, then one song removed
+        new File(dir, "bartok.mid").delete();
+        MidiLibrary reopened = new MidiLibrary(dir, 8, Logger.getAnonymousLogger());
+        Assert.assertTrue(reopened.scan());
+        Assert.assertEquals(Arrays.asList("bach", "chopin"), reopened.complete(""));
+        Assert.assertEquals(1, reopened.get("chopin").getPlays());
+        Assert.assertEquals(bach.getNotes(), reopened.get("bach").getNotes());
+    }
+
+    @Test
+    public void oldVersion() throws Exception {
+        File dir = folder.getRoot();
+        File song = new File(dir, "chopin.mid");
+        Files.write(song.toPath(), MidiDecoderTest.generate(7L, 1, 100));
+        // Saved before the file had a version, with stale numbers.
+        String json = "{\"chopin\":{\"name\":\"chopin\",\"size\":" + song.length() + ",\"lastModified\":" + song.lastModified()
+            + ",\"notes\":1,\"programs\":[],\"plays\":3}}";
+        Files.write(new File(dir, MidiLibrary.FILENAME).toPath(), json.getBytes("UTF-8"));
+        MidiLibrary library = new MidiLibrary(dir, 8, Logger.getAnonymousLogger());
+        Assert.assertTrue(library.scan());
+        Assert.assertTrue(library.get("chopin").getNotes() > 1);
+        Assert.assertEquals(3, library.get("chopin").getPlays());
+        MidiLibrary reopened = new MidiLibrary(dir, 8, Logger.getAnonymousLogger());
+        Assert.assertFalse(reopened.scan());
+        Assert.assertEquals(3, reopened.get("chopin").getPlays());
+    }
+}
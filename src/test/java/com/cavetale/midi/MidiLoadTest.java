@@ -0,0 +1,410 @@
+package com.cavetale.midi;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.Sound;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Many speakers ticked by the scheduler, as in the plugin, against a
+ * world which records every sound, while chunks load and unload at
+ * random and speakers come and go.  Each sound is checked against the
+ * blip schedule of its speaker's song, counting only the ticks its
+ * chunk was loaded, less the ticks it was deferred.  The listener
+ * radius, tick budget and lookahead are those of config.yml, and a
+ * few listeners stand about, so some speakers are culled.  With
+ * midi.load.report set, prints tick time percentiles, sounds per
+ * second and heap growth.
+ *
+ * The defaults run in a few seconds.  Scale up with system
+ * properties, for example:
+ * mvn test -Dtest=MidiLoadTest -Dmidi.load.report -Dmidi.load.players=20000 -Dmidi.load.ticks=6000
+ */
+public final class MidiLoadTest {
+    static final String WORLD_NAME = "load";
+    // Speaker ids are stored in the y coordinate, in these fractions
+    // of a block, so all speakers stand about level with the
+    // listeners.
+    static final double ID_SCALE = 1024.0;
+    static World world;
+    static Server server;
+
+    /**
+     * A virtual player and what it played so far.
+     */
+    static final class Speaker {
+        MidiPlayer mplayer;
+        Schedule schedule;
+        int chunk;
+        // The loaded ticks of the chunk when this speaker started.
+        long start;
+        // Ticks this speaker was due but deferred.
+        long delay;
+        boolean audible;
+        long played;
+
+        /**
+         * The blips due until now.
+         */
+        long due(long[] loadedTicks) {
+            return schedule.countUntil(loadedTicks[chunk] - start - 1L - delay);
+        }
+    }
+
+    /**
+     * The step on which each blip of a song is due, at one speed.
+     */
+    static final class Schedule {
+        final Midi midi;
+        final double speed;
+        final long[] steps;
+        // Steps per round of a looping song.
+        final long length;
+
+        Schedule(final Midi midi, final double speed) {
+            this.midi = midi;
+            this.speed = speed;
+            long[] ticks = midi.getTicks();
+            this.steps = new long[ticks.length];
+            for (int i = 0; i < ticks.length; i += 1) {
+                steps[i] = (long) Math.ceil((ticks[i] - ticks[0]) / speed);
+            }
+            this.length = steps[steps.length - 1] + 1L;
+        }
+
+        /**
+         * The blips due up to and including a step.
+         */
+        long countUntil(long step) {
+            if (step < 0L) return 0L;
+            long rounds = step / length;
+            long rest = step % length;
+            int lo = 0;
+            int hi = steps.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (steps[mid] <= rest) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return rounds * steps.length + lo;
+        }
+    }
+
+    // Speakers by id.
+    final List<Speaker> speakers = new ArrayList<>();
+    // Listener coordinates, x, y, z.
+    double[] listenerCoords;
+    double radius;
+    boolean[] loaded;
+    long[] loadedTicks;
+    int chunkSide;
+    long sounds;
+    long mismatches;
+    String firstMismatch;
+
+    static int intProperty(String key, int dfl) {
+        return Integer.getInteger("midi.load." + key, dfl);
+    }
+
+    static double doubleProperty(String key, double dfl) {
+        String value = System.getProperty("midi.load." + key);
+        return value != null ? Double.parseDouble(value) : dfl;
+    }
+
+    /**
+     * Install a server with one world, which records sounds for the
+     * current test, once per JVM.  The server is removed again after
+     * the tests.
+     */
+    void install() {
+        world = (World) Proxy.newProxyInstance(World.class.getClassLoader(), new Class<?>[] {World.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                case "getName": return WORLD_NAME;
+                case "isChunkLoaded": return isLoaded((Integer) args[0], (Integer) args[1]);
+                case "playSound":
+                    if (args[0] instanceof Location) record((Location) args[0], (Sound) args[1], (Float) args[4]);
+                    return null;
+                case "hashCode": return System.identityHashCode(proxy);
+                case "equals": return proxy == args[0];
+                default: return null;
+                }
+            });
+        if (server != null && Bukkit.getServer() == server) return;
+        Assert.assertNull("Another server is installed", Bukkit.getServer());
+        server = (Server) Proxy.newProxyInstance(Server.class.getClassLoader(), new Class<?>[] {Server.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getWorld": return WORLD_NAME.equals(args[0]) ? world : null;
+                    case "getLogger": return Logger.getLogger("MidiLoadTest");
+                    case "getName": case "getVersion": case "getBukkitVersion": return "load";
+                    default: return null;
+                    }
+                });
+        Bukkit.setServer(server);
+    }
+
+    @AfterClass
+    public static void uninstall() throws Exception {
+        if (server == null || Bukkit.getServer() != server) return;
+        // Bukkit refuses to replace its server.
+        Field field = Bukkit.class.getDeclaredField("server");
+        field.setAccessible(true);
+        field.set(null, null);
+        server = null;
+        world = null;
+    }
+
+    /**
+     * Online players standing still, at random places in the world.
+     */
+    List<Player> listeners(int count, Random random) {
+        listenerCoords = new double[count * 3];
+        List<Player> result = new ArrayList<>();
+        for (int i = 0; i < count; i += 1) {
+            final double x = random.nextDouble() * chunkSide * 16;
+            final double z = random.nextDouble() * chunkSide * 16;
+            listenerCoords[i * 3] = x;
+            listenerCoords[i * 3 + 2] = z;
+            result.add((Player) Proxy.newProxyInstance(Player.class.getClassLoader(), new Class<?>[] {Player.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                        case "getLocation":
+                            if (args == null) return new Location(world, x, 0.0, z);
+                            Location location = (Location) args[0];
+                            location.setWorld(world);
+                            location.setX(x);
+                            location.setY(0.0);
+                            location.setZ(z);
+                            return location;
+                        case "hashCode": return System.identityHashCode(proxy);
+                        case "equals": return proxy == args[0];
+                        default: return null;
+                        }
+                    }));
+        }
+        return result;
+    }
+
+    /**
+     * Whether any listener is close enough to hear a speaker at
+     * volume 1.
+     */
+    boolean canHear(MidiPlayer mplayer) {
+        for (int i = 0; i < listenerCoords.length; i += 3) {
+            double dx = listenerCoords[i] - mplayer.x;
+            double dy = listenerCoords[i + 1] - mplayer.y;
+            double dz = listenerCoords[i + 2] - mplayer.z;
+            if (dx * dx + dy * dy + dz * dz <= radius * radius) return true;
+        }
+        return false;
+    }
+
+    boolean isLoaded(int cx, int cz) {
+        if (cx < 0 || cz < 0 || cx >= chunkSide || cz >= chunkSide) return false;
+        return loaded[cx * chunkSide + cz];
+    }
+
+    void record(Location location, Sound sound, float pitch) {
+        sounds += 1L;
+        final int id = (int) (location.getY() * ID_SCALE);
+        Speaker speaker = speakers.get(id);
+        Midi midi = speaker.schedule.midi;
+        long step = loadedTicks[speaker.chunk] - speaker.start - 1L - speaker.delay;
+        int index = (int) (speaker.played % midi.size());
+        long expected = (speaker.played / midi.size()) * speaker.schedule.length + speaker.schedule.steps[index];
+        speaker.played += 1L;
+        if (speaker.audible && sound == midi.getSound(index) && pitch == midi.getPitches()[index] && step == expected) return;
+        mismatches += 1L;
+        if (firstMismatch == null) {
+            firstMismatch = "Speaker " + id + (speaker.audible ? "" : ", out of hearing,") + " blip " + index + ": expected " + midi.getSound(index)
+                + " " + midi.getPitches()[index] + " on step " + expected + ", got " + sound + " " + pitch + " on step " + step;
+        }
+    }
+
+    Speaker spawn(MidiIndex players, Random random, List<Schedule> schedules, MidiLookahead.Worker worker, int lookahead) {
+        Speaker speaker = new Speaker();
+        speaker.schedule = schedules.get(random.nextInt(schedules.size()));
+        speaker.chunk = random.nextInt(loaded.length);
+        speaker.start = loadedTicks[speaker.chunk];
+        MidiPlayer mplayer = new MidiPlayer();
+        mplayer.world = WORLD_NAME;
+        mplayer.x = (speaker.chunk / chunkSide) * 16 + random.nextInt(16);
+        mplayer.y = speakers.size() / ID_SCALE;
+        mplayer.z = (speaker.chunk % chunkSide) * 16 + random.nextInt(16);
+        mplayer.speed = speaker.schedule.speed;
+        mplayer.loop = true;
+        mplayer.updateChunk();
+        speaker.audible = canHear(mplayer);
+        speaker.mplayer = mplayer;
+        speakers.add(speaker);
+        // Like MidiPlugin.loaded
+        players.add(mplayer);
+        mplayer.midi = speaker.schedule.midi;
+        if (worker != null) mplayer.lookahead = new MidiLookahead(worker, lookahead);
+        mplayer.setup();
+        players.activate(mplayer);
+        return speaker;
+    }
+
+    @Test
+    public void load() throws Exception {
+        final int playerCount = intProperty("players", 2000);
+        final int tickCount = intProperty("ticks", 600);
+        final int chunkCount = intProperty("chunks", 256);
+        // Chance per tick that a loaded chunk unloads, and that an
+        // unloaded one loads.
+        final double unload = doubleProperty("unload", 0.01);
+        final double reload = doubleProperty("reload", 0.1);
+        // Chance per tick that a speaker is replaced by a new one.
+        final double replace = doubleProperty("replace", 0.0005);
+        // As in config.yml
+        radius = doubleProperty("radius", 20.0);
+        final long budget = (long) doubleProperty("budget", 2000000.0);
+        final int lookahead = intProperty("lookahead", 20);
+        final Random random = new Random(intProperty("seed", 1));
+        final boolean report = System.getProperty("midi.load.report") != null;
+        install();
+        chunkSide = (int) Math.ceil(Math.sqrt(chunkCount));
+        loaded = new boolean[chunkSide * chunkSide];
+        loadedTicks = new long[loaded.length];
+        Arrays.fill(loaded, true);
+        List<Schedule> schedules = new ArrayList<>();
+        for (int i = 0; i < 3; i += 1) {
+            // One short song, which loops during the test.
+            Midi midi = Midi.compile(ByteBuffer.wrap(MidiDecoderTest.generate(i, 1 + i * 7, i == 0 ? 100 : 3000)), 8);
+            for (double speed: new double[] {0.5, 1.0, 2.0}) schedules.add(new Schedule(midi, speed));
+        }
+        List<Player> online = listeners(intProperty("listeners", 8), random);
+        MidiStats stats = new MidiStats();
+        MidiIndex players = new MidiIndex(stats);
+        MidiListeners listeners = new MidiListeners(radius);
+        List<MidiPlayer> stopped = new ArrayList<>();
+        MidiScheduler scheduler = new MidiScheduler(players, listeners, stopped::add, stats, budget);
+        MidiLookahead.Worker worker = null;
+        if (lookahead > 0) {
+            worker = new MidiLookahead.Worker();
+            worker.start();
+        }
+        List<Speaker> live = new ArrayList<>();
+        // Blips due to speakers which can and cannot be heard.
+        long expectedSounds = 0L;
+        long expectedCulled = 0L;
+        long deferred = 0L;
+        long missing = 0L;
+        long heapBefore = report ? usedHeap() : 0L;
+        for (int i = 0; i < playerCount; i += 1) live.add(spawn(players, random, schedules, worker, lookahead));
+        long heapSpawned = report ? usedHeap() : 0L;
+        long[] tickNanos = new long[tickCount];
+        long replaced = 0L;
+        try {
+            for (int tick = 0; tick < tickCount; tick += 1) {
+                for (int chunk = 0; chunk < loaded.length; chunk += 1) {
+                    boolean flip = random.nextDouble() < (loaded[chunk] ? unload : reload);
+                    if (!flip) continue;
+                    loaded[chunk] = !loaded[chunk];
+                    if (loaded[chunk]) {
+                        players.chunkLoaded(WORLD_NAME, chunk / chunkSide, chunk % chunkSide);
+                    } else {
+                        players.chunkUnloaded(WORLD_NAME, chunk / chunkSide, chunk % chunkSide);
+                    }
+                }
+                for (int i = 0; i < live.size(); i += 1) {
+                    if (random.nextDouble() >= replace) continue;
+                    // Like MidiPlugin.stopPlayer
+                    Speaker speaker = live.get(i);
+                    long due = speaker.due(loadedTicks);
+                    if (speaker.audible) {
+                        if (speaker.played != due) missing += 1L;
+                        expectedSounds += due;
+                    } else {
+                        expectedCulled += due;
+                    }
+                    speaker.mplayer.stop();
+                    players.remove(speaker.mplayer);
+                    live.set(i, spawn(players, random, schedules, worker, lookahead));
+                    replaced += 1L;
+                }
+                for (int chunk = 0; chunk < loaded.length; chunk += 1) {
+                    if (loaded[chunk]) loadedTicks[chunk] += 1L;
+                }
+                long time = System.nanoTime();
+                scheduler.tick(online);
+                tickNanos[tick] = System.nanoTime() - time;
+                // Deferred players wait in the queue, and play each
+                // step one tick later.  A speaker which was spawned
+                // in an unloaded chunk has not started yet.
+                for (Speaker speaker: live) {
+                    if (!speaker.mplayer.queued || speaker.mplayer.deferred == 0) continue;
+                    deferred += 1L;
+                    if (loaded[speaker.chunk]) speaker.delay += 1L;
+                }
+            }
+        } finally {
+            if (worker != null) worker.stop();
+        }
+        // Count the sounds of the last tick, like the next tick would.
+        listeners.update(online);
+        stats.ticked(listeners.getLastEmitted(), listeners.getLastCulled());
+        long heapAfter = report ? usedHeap() : 0L;
+        // Nothing due may be left unplayed.
+        for (Speaker speaker: live) {
+            long due = speaker.due(loadedTicks);
+            if (speaker.audible) {
+                if (speaker.played != due) missing += 1L;
+                expectedSounds += due;
+            } else {
+                expectedCulled += due;
+            }
+        }
+        if (report) {
+            long[] sorted = tickNanos.clone();
+            Arrays.sort(sorted);
+            long total = 0L;
+            for (long nanos: tickNanos) total += nanos;
+            System.out.println(String.format("MidiLoadTest: %d players, %d ticks, %d chunks, %d replaced, %d pauses, %d deferred in %d overruns;"
+                                             + " tick p50 %dus, p90 %dus, p99 %dus, max %dus;"
+                                             + " %d sounds, %d culled, %.0f/s game time, %.0f/s ticking; heap %+d KiB for players, %+d KiB over the run",
+                                             playerCount, tickCount, loaded.length, replaced, stats.getPauses(),
+                                             scheduler.getDeferred(), scheduler.getOverruns(),
+                                             percentile(sorted, 0.5) / 1000L, percentile(sorted, 0.9) / 1000L,
+                                             percentile(sorted, 0.99) / 1000L, sorted[sorted.length - 1] / 1000L,
+                                             sounds, stats.getCulled(), sounds * 20.0 / tickCount, sounds * 1e9 / Math.max(1L, total),
+                                             (heapSpawned - heapBefore) / 1024L, (heapAfter - heapSpawned) / 1024L));
+        }
+        Assert.assertEquals(firstMismatch, 0L, mismatches);
+        Assert.assertEquals(0L, missing);
+        Assert.assertEquals(expectedSounds, sounds);
+        Assert.assertEquals(expectedSounds, stats.getEmitted());
+        Assert.assertEquals(expectedCulled, stats.getCulled());
+        Assert.assertEquals(deferred, scheduler.getDeferred());
+        Assert.assertEquals(scheduler.getDeferred() > 0L, scheduler.getOverruns() > 0L);
+        Assert.assertTrue(stopped.isEmpty());
+        Assert.assertTrue(sounds > 0L);
+        Assert.assertTrue(stats.getCulled() > 0L);
+    }
+
+    static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
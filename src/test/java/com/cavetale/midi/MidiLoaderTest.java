@@ -0,0 +1,35 @@
+package com.cavetale.midi;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.logging.Logger;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class MidiLoaderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void stopReleases() throws Exception {
+        File dir = folder.getRoot();
+        File[] files = new File[4];
+        for (int i = 0; i < files.length; i += 1) {
+            files[i] = new File(dir, "song" + i + ".mid");
+            Files.write(files[i].toPath(), MidiDecoderTest.generate(i, 4, 2000));
+        }
+        MidiStats stats = new MidiStats();
+        MidiCache songs = new MidiCache(8, Logger.getAnonymousLogger(), stats);
+        MidiLoader loader = new MidiLoader(songs, 8, stats, 2);
+        MidiPlayer mplayer = new MidiPlayer();
+        for (int i = 0; i < 40; i += 1) {
+            loader.submit(mplayer, i, files[i % files.length], i % 5 == 0);
+        }
+        // Nothing drained, and loads still in flight.
+        Assert.assertTrue(loader.stop());
+        Assert.assertEquals(0, songs.size());
+        Assert.assertEquals(0L, stats.cachedSongs.get());
+    }
+}
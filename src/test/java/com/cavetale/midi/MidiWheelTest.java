@@ -0,0 +1,128 @@
+package com.cavetale.midi;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.bukkit.Location;
+import org.bukkit.Sound;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class MidiWheelTest {
+    @Test
+    public void schedule() {
+        MidiWheel wheel = new MidiWheel();
+        MidiPlayer a = new MidiPlayer();
+        MidiPlayer b = new MidiPlayer();
+        MidiPlayer c = new MidiPlayer();
+        MidiPlayer d = new MidiPlayer();
+        wheel.schedule(a, 3L);
+        wheel.schedule(b, 3L);
+        // One turn later, in the same slot
+        wheel.schedule(c, 3L + MidiWheel.SLOTS);
+        wheel.schedule(d, 5L);
+        Assert.assertEquals(4, wheel.size());
+        Assert.assertTrue(wheel.cancel(b));
+        Assert.assertFalse(wheel.cancel(b));
+        // Moved
+        wheel.schedule(d, 4L);
+        List<MidiPlayer> due = new ArrayList<>();
+        for (long tick = 1L; tick <= 3L + MidiWheel.SLOTS; tick += 1L) {
+            wheel.poll(tick, due);
+            if (tick == 3L) Assert.assertEquals(Arrays.asList(a), due);
+            if (tick == 4L) Assert.assertEquals(Arrays.asList(a, d), due);
+        }
+        Assert.assertEquals(Arrays.asList(a, d, c), due);
+        Assert.assertEquals(0, wheel.size());
+        // In the past
+        wheel.schedule(a, 1L);
+        Assert.assertEquals(wheel.next(), a.wake);
+    }
+
+    @Test
+    public void catchUp() {
+        Midi.Builder builder = new Midi.Builder();
+        builder.add(0L, Sound.BLOCK_NOTE_BLOCK_HARP, 1.0f, 100);
+        builder.add(50L, Sound.BLOCK_NOTE_BLOCK_HARP, 1.0f, 100);
+        MidiPlayer mplayer = new MidiPlayer();
+        mplayer.midi = builder.build();
+        mplayer.setup();
+        mplayer.seek(10.0);
+        mplayer.setSpeed(2.0);
+        // Due on the step with position 50
+        Assert.assertEquals(20L, mplayer.idleSteps());
+        mplayer.clock = 1L;
+        mplayer.wake = 21L;
+        mplayer.catchUp(30L);
+        Assert.assertEquals(21L, mplayer.clock);
+        Assert.assertEquals(50.0, mplayer.tick, 0.0);
+        Assert.assertEquals(0L, mplayer.idleSteps());
+    }
+
+    /**
+     * The server ticks on which a player plays each blip, over a
+     * number of ticks.  It is ticked on every tick, or sleeps in the
+     * wheel between blips, with or without a lookahead.
+     */
+    static List<Long> play(Midi midi, double speed, int ticks, boolean wheel, boolean lookahead) throws Exception {
+        final List<Long> result = new ArrayList<>();
+        final MidiListeners listeners = new MidiListeners(0.0);
+        World world = (World) Proxy.newProxyInstance(World.class.getClassLoader(), new Class<?>[] {World.class}, (proxy, method, args) -> {
+                if (method.getName().equals("playSound")) result.add(listeners.getTick());
+                return null;
+            });
+        MidiPlayer mplayer = new MidiPlayer();
+        mplayer.location = new Location(world, 0.0, 0.0, 0.0);
+        mplayer.midi = midi;
+        mplayer.speed = speed;
+        mplayer.loop = true;
+        MidiLookahead.Worker worker = null;
+        if (lookahead) {
+            worker = new MidiLookahead.Worker();
+            worker.start();
+            mplayer.lookahead = new MidiLookahead(worker, 20);
+        }
+        mplayer.setup();
+        try {
+            if (!wheel) {
+                for (int i = 0; i < ticks; i += 1) {
+                    listeners.update(Collections.<Player>emptyList());
+                    mplayer.tick(listeners);
+                }
+                return result;
+            }
+            MidiStats stats = new MidiStats();
+            MidiIndex players = new MidiIndex(stats);
+            MidiScheduler scheduler = new MidiScheduler(players, listeners, p -> { }, stats, 0L);
+            players.add(mplayer);
+            players.activate(mplayer);
+            for (int i = 0; i < ticks; i += 1) scheduler.tick(Collections.<Player>emptyList());
+            return result;
+        } finally {
+            if (worker != null) worker.stop();
+        }
+    }
+
+    @Test
+    public void sameAsEveryTick() throws Exception {
+        Random random = new Random(19L);
+        Midi.Builder builder = new Midi.Builder();
+        long tick = 0L;
+        for (int i = 0; i < 400; i += 1) {
+            tick += 1L + random.nextInt(i % 10 == 0 ? 200 : 12);
+            builder.add(tick, Sound.BLOCK_NOTE_BLOCK_HARP, 1.0f, 100);
+        }
+        Midi midi = builder.build();
+        for (double speed: new double[] {1.3, 0.7, 2.9, 0.1}) {
+            List<Long> expected = play(midi, speed, 20000, false, false);
+            Assert.assertFalse(expected.isEmpty());
+            Assert.assertEquals("Speed " + speed, expected, play(midi, speed, 20000, true, false));
+            Assert.assertEquals("Speed " + speed + " with lookahead", expected, play(midi, speed, 20000, true, true));
+        }
+    }
+}